@@ -0,0 +1,21 @@
+package org.apache.ctakes.core.cleartk.benchmark;
+
+import org.apache.ctakes.core.ae.SentenceDetector;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * The cTAKES OpenNLP-based SentenceDetector, the BASELINE of SentenceDetectorEvaluation.
+ */
+public class BaselineSentenceDetectorBenchmark extends PipelineBenchmark {
+
+  @Override
+  protected AnalysisEngineDescription getDetectorDescription() throws Exception {
+    return SentenceDetector.createAnnotatorDescription();
+  }
+
+  @Benchmark
+  public int process() throws Exception {
+    return processDocument();
+  }
+}
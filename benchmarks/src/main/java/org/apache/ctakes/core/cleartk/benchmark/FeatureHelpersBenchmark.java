@@ -0,0 +1,127 @@
+package org.apache.ctakes.core.cleartk.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ctakes.core.ae.SimpleSegmentAnnotator;
+import org.apache.ctakes.core.cleartk.ae.SegmentTokenIndex;
+import org.apache.ctakes.core.cleartk.ae.SentenceDetectorAnnotator;
+import org.apache.ctakes.core.cleartk.ae.SentenceDetectorAnnotator.FEAT_CONFIG;
+import org.apache.ctakes.core.cleartk.benchmark.SyntheticNotes.DocSize;
+import org.apache.ctakes.core.cleartk.ml.TokenLexicon;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.jcas.JCas;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The SentenceDetectorAnnotator helpers in isolation. Each operation covers a whole document (every character,
+ * every token pair, every line or every sentence), so these scores convert to chars/sec the same way as the
+ * pipeline benchmarks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FeatureHelpersBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  public DocSize docSize;
+
+  private String text;
+  private SegmentTokenIndex tokens;
+  private TokenLexicon tokenCounts;
+  private SentenceDetectorAnnotator annotator;
+  private AnalysisEngine segmenter;
+  private JCas jcas;
+  // begin/end pairs of the sentences makeSentence is asked to build
+  private int[] spans;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    text = SyntheticNotes.generate(docSize);
+    tokens = new SegmentTokenIndex(text);
+    tokenCounts = TokenLexicon.getInstance(SentenceDetectorAnnotator.DEFAULT_TOKEN_FILE);
+    // buildDocEndlineModel only uses the annotator's own fields, so it does not need to be initialized
+    annotator = new SentenceDetectorAnnotator();
+    segmenter = AnalysisEngineFactory.createEngine(SimpleSegmentAnnotator.createAnnotatorDescription());
+    jcas = segmenter.newJCas();
+
+    // one sentence per period or newline, padded with the surrounding whitespace for makeSentence to trim
+    List<Integer> ends = new ArrayList<>();
+    for(int i = 0; i < text.length(); i++){
+      if(text.charAt(i) == '.' || text.charAt(i) == '\n') ends.add(i+1);
+    }
+    spans = new int[2 * ends.size()];
+    int begin = 0;
+    for(int i = 0; i < ends.size(); i++){
+      spans[2*i] = begin;
+      spans[2*i+1] = Math.min(text.length(), ends.get(i) + 1);
+      begin = ends.get(i);
+    }
+
+    jcas.setDocumentText(text);
+    segmenter.process(jcas);
+  }
+
+  /**
+   * makeSentence adds to the CAS, so it gets a fresh one holding only the text and its segment every time.
+   */
+  @State(Scope.Thread)
+  public static class FreshCas {
+    @Setup(Level.Invocation)
+    public void reset(FeatureHelpersBenchmark doc) throws Exception {
+      doc.jcas.reset();
+      doc.jcas.setDocumentText(doc.text);
+      doc.segmenter.process(doc.jcas);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown(){
+    segmenter.destroy();
+  }
+
+  @Benchmark
+  public void getCharFeatures(Blackhole bh){
+    for(int i = 0; i < text.length(); i++){
+      bh.consume(SentenceDetectorAnnotator.getCharFeatures(text.charAt(i), "Character"));
+    }
+  }
+
+  @Benchmark
+  public void getTokenFeatures(Blackhole bh){
+    for(int tok = 0; tok <= tokens.size(); tok++){
+      bh.consume(SentenceDetectorAnnotator.getTokenFeatures(FEAT_CONFIG.CHAR_SHAPE, tokenCounts,
+          tokens.getToken(tok-1), tokens.getDotlessToken(tok-1), tokens.getToken(tok), tokens.getLowerToken(tok), "Token"));
+    }
+  }
+
+  @Benchmark
+  public void buildDocEndlineModel(){
+    annotator.buildDocEndlineModel(jcas);
+  }
+
+  @Benchmark
+  public void makeSentence(FreshCas fresh){
+    for(int i = 0; i < spans.length; i += 2){
+      SentenceDetectorAnnotator.makeSentence(jcas, spans[i], spans[i+1]);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package org.apache.ctakes.core.cleartk.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ctakes.core.ae.SimpleSegmentAnnotator;
+import org.apache.ctakes.core.cleartk.benchmark.SyntheticNotes.DocSize;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.fit.factory.AggregateBuilder;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs a whole document through SimpleSegmentAnnotator and a sentence detector, reusing one CAS. One operation
+ * is one document, so chars/sec is the score times the {@link DocSize} (see {@link RunBenchmarks}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public abstract class PipelineBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  public DocSize docSize;
+
+  private String text;
+  private AnalysisEngine engine;
+  private JCas jcas;
+
+  protected abstract AnalysisEngineDescription getDetectorDescription() throws Exception;
+
+  @Setup
+  public void setUp() throws Exception {
+    text = SyntheticNotes.generate(docSize);
+    AggregateBuilder builder = new AggregateBuilder();
+    builder.add(SimpleSegmentAnnotator.createAnnotatorDescription());
+    builder.add(getDetectorDescription());
+    engine = AnalysisEngineFactory.createEngine(builder.createAggregateDescription());
+    jcas = engine.newJCas();
+  }
+
+  @TearDown
+  public void tearDown(){
+    engine.destroy();
+  }
+
+  // the sentence count is returned so that the work cannot be optimized away
+  protected int processDocument() throws Exception {
+    jcas.reset();
+    jcas.setDocumentText(text);
+    engine.process(jcas);
+    return JCasUtil.select(jcas, Sentence.class).size();
+  }
+}
@@ -0,0 +1,35 @@
+package org.apache.ctakes.core.cleartk.benchmark;
+
+import org.apache.ctakes.rnn.RnnSentenceDetector;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * RnnSentenceDetector.process. No RNN model is bundled, so the system properties rnn.modelFile (the model file
+ * written by TrainMimicRnn) and rnn.classifierJar (a model.jar trained with RNN features by
+ * SentenceDetectorEvaluation) are required.
+ */
+public class RnnSentenceDetectorBenchmark extends PipelineBenchmark {
+
+  @Param({"false", "true"})
+  public boolean compiledScorer;
+
+  @Override
+  protected AnalysisEngineDescription getDetectorDescription() throws Exception {
+    String modelFile = System.getProperty("rnn.modelFile");
+    String classifierJar = System.getProperty("rnn.classifierJar");
+    if(modelFile == null || classifierJar == null){
+      throw new IllegalStateException("Set -Drnn.modelFile and -Drnn.classifierJar to benchmark the RNN detector");
+    }
+    AnalysisEngineDescription aed = RnnSentenceDetector.getDescription(classifierJar);
+    aed.getMetaData().getConfigurationParameterSettings().setParameterValue(RnnSentenceDetector.PARAM_MODEL_FILE, modelFile);
+    aed.getMetaData().getConfigurationParameterSettings().setParameterValue(RnnSentenceDetector.PARAM_COMPILED_SCORER, compiledScorer);
+    return aed;
+  }
+
+  @Benchmark
+  public int process() throws Exception {
+    return processDocument();
+  }
+}
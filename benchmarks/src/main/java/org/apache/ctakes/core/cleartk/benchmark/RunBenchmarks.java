@@ -0,0 +1,65 @@
+package org.apache.ctakes.core.cleartk.benchmark;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.ctakes.core.cleartk.benchmark.SyntheticNotes.DocSize;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler and adds a chars/sec summary to the JMH output. Arguments are the usual
+ * JMH ones, e.g. a benchmark regex, or "-p docSize=SMALL,MEDIUM" to skip the very large documents. With no
+ * benchmark regex everything in this package runs.
+ * <pre>
+ * java -Dsentdetect.modelDir=target/models -jar target/benchmarks.jar SentenceDetectorAnnotatorBenchmark -p featConfig=CHAR
+ * </pre>
+ */
+public class RunBenchmarks {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmdOptions = new CommandLineOptions(args);
+    ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions).addProfiler(GCProfiler.class);
+    if(cmdOptions.getIncludes().isEmpty()){
+      builder.include(RunBenchmarks.class.getPackage().getName() + ".*Benchmark");
+    }
+    Collection<RunResult> results = new Runner(builder.build()).run();
+
+    System.out.println();
+    System.out.println(String.format("%-60s %-40s %14s %14s %14s", "Benchmark", "Params", "chars/sec", "alloc MB/sec", "alloc B/char"));
+    for(RunResult result : results){
+      String docSize = result.getParams().getParam("docSize");
+      if(docSize == null) continue;
+      int chars = DocSize.valueOf(docSize).chars;
+      double docsPerSec = result.getPrimaryResult().getScore();
+
+      Map<String,Result> secondary = result.getSecondaryResults();
+      double allocRate = Double.NaN;
+      double allocPerDoc = Double.NaN;
+      for(String label : secondary.keySet()){
+        // the profiler prefixes its labels, and the prefix character differs between JMH versions
+        if(label.endsWith("gc.alloc.rate")){
+          allocRate = secondary.get(label).getScore();
+        }else if(label.endsWith("gc.alloc.rate.norm")){
+          allocPerDoc = secondary.get(label).getScore();
+        }
+      }
+      System.out.println(String.format("%-60s %-40s %14.0f %14.1f %14.1f", result.getParams().getBenchmark(),
+          getParamString(result), docsPerSec * chars, allocRate, allocPerDoc / chars));
+    }
+  }
+
+  private static String getParamString(RunResult result){
+    StringBuilder params = new StringBuilder();
+    for(String key : result.getParams().getParamsKeys()){
+      if(params.length() > 0) params.append(' ');
+      params.append(key).append('=').append(result.getParams().getParam(key));
+    }
+    return params.toString();
+  }
+}
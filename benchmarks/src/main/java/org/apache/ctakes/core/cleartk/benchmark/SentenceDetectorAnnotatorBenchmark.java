@@ -0,0 +1,49 @@
+package org.apache.ctakes.core.cleartk.benchmark;
+
+import java.io.File;
+
+import org.apache.ctakes.core.cleartk.ae.SentenceDetectorAnnotator;
+import org.apache.ctakes.core.cleartk.pipeline.GenerateDescriptors;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.fit.factory.ConfigurationParameterFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * SentenceDetectorAnnotator.process for each feature configuration.
+ * <p>
+ * Set the system property sentdetect.modelDir to a directory with a &lt;FEAT_CONFIG&gt;/model.jar for each
+ * configuration. Without it every configuration uses the bundled model, which was trained with CHAR features:
+ * the features are still extracted as configured, but the decisions (and so the number of sentences built)
+ * differ from those of a matching model.
+ */
+public class SentenceDetectorAnnotatorBenchmark extends PipelineBenchmark {
+
+  @Param({"GILLICK", "CHAR", "SHAPE", "LINE_POS", "CHAR_SHAPE", "CHAR_POS", "CHAR_SHAPE_POS"})
+  public SentenceDetectorAnnotator.FEAT_CONFIG featConfig;
+
+  @Param({"false"})
+  public boolean compiledScorer;
+
+  @Override
+  protected AnalysisEngineDescription getDetectorDescription() throws Exception {
+    String modelPath = GenerateDescriptors.sentModelPath;
+    String modelDir = System.getProperty("sentdetect.modelDir");
+    if(modelDir != null){
+      modelPath = new File(new File(modelDir, featConfig.toString()), "model.jar").getAbsolutePath();
+    }
+    AnalysisEngineDescription aed = SentenceDetectorAnnotator.getDescription(modelPath);
+    ConfigurationParameterFactory.addConfigurationParameter(aed,
+        SentenceDetectorAnnotator.PARAM_FEAT_CONFIG,
+        featConfig);
+    ConfigurationParameterFactory.addConfigurationParameter(aed,
+        SentenceDetectorAnnotator.PARAM_COMPILED_SCORER,
+        compiledScorer);
+    return aed;
+  }
+
+  @Benchmark
+  public int process() throws Exception {
+    return processDocument();
+  }
+}
@@ -0,0 +1,90 @@
+package org.apache.ctakes.core.cleartk.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates clinical-looking notes for the benchmarks: section headers, hard-wrapped narrative with
+ * abbreviations, vitals and lab lines, numbered medication lists and MIMIC-style PHI placeholders. The same
+ * size always gives the same text, so runs are comparable.
+ */
+public class SyntheticNotes {
+
+  public static enum DocSize {
+    SMALL(2000), MEDIUM(50000), LARGE(5000000);
+
+    public final int chars;
+
+    private DocSize(int chars){
+      this.chars = chars;
+    }
+  }
+
+  private static final String[] HEADERS = {"HISTORY OF PRESENT ILLNESS:", "PAST MEDICAL HISTORY:", "MEDICATIONS ON ADMISSION:",
+    "PHYSICAL EXAM:", "PERTINENT RESULTS:", "BRIEF HOSPITAL COURSE:", "DISCHARGE DIAGNOSIS:", "DISCHARGE INSTRUCTIONS:"};
+
+  private static final String[] SENTENCES = {
+    "Pt is a 67 y.o. male w/ hx of CAD s/p CABG in [**2089**], DM2, and HTN who presents with SOB.",
+    "He was seen by Dr. [**Last Name (STitle) 1234**] at an OSH and transferred for further mgmt.",
+    "Denies CP, N/V, or abd pain.",
+    "Pt was started on heparin gtt and ASA 325 mg p.o. daily.",
+    "CXR showed b/l pleural effusions vs. atelectasis, no PTX.",
+    "Echo on [**2094-3-12**] demonstrated an EF of 35% with mild MR.",
+    "Renal was consulted for ARF, Cr peaked at 2.4 and trended down to 1.6 at d/c.",
+    "The patient tolerated the procedure well and was transferred to the floor in stable condition.",
+    "Follow up with PCP in 1-2 wks.",
+    "Please call your doctor or return to the ED if you experience fevers > 101.5, chest pain, or shortness of breath."
+  };
+
+  private static final String[] MEDS = {"Metoprolol 25 mg PO BID", "Lisinopril 10 mg PO daily", "Atorvastatin 80 mg PO qHS",
+    "Furosemide 40 mg IV q12h", "Insulin sliding scale", "Aspirin 81 mg PO daily", "Pantoprazole 40 mg PO q24h"};
+
+  private static final int LINE_LENGTH = 72;
+
+  public static String generate(DocSize size){
+    return generate(size.chars, size.ordinal());
+  }
+
+  public static String generate(int numChars, long seed){
+    Random random = new Random(seed);
+    StringBuilder doc = new StringBuilder(numChars + 1000);
+    doc.append("Admission Date:  [**2094-3-10**]     Discharge Date:  [**2094-3-18**]\n\n");
+    while(doc.length() < numChars){
+      doc.append(HEADERS[random.nextInt(HEADERS.length)]).append('\n');
+      switch(random.nextInt(3)){
+        case 0:
+          for(int i = 0; i < 3 + random.nextInt(5); i++){
+            doc.append(i+1).append(". ").append(MEDS[random.nextInt(MEDS.length)]).append('\n');
+          }
+          break;
+        case 1:
+          doc.append(String.format("T %.1f  HR %d  BP %d/%d  RR %d  O2 sat %d%% RA\n", 96 + 4 * random.nextDouble(),
+              50 + random.nextInt(60), 90 + random.nextInt(70), 50 + random.nextInt(40), 12 + random.nextInt(14), 88 + random.nextInt(12)));
+          doc.append(String.format("WBC-%.1f Hgb-%.1f Plt-%d Na-%d K-%.1f Cr-%.1f\n", 4 + 10 * random.nextDouble(), 8 + 6 * random.nextDouble(),
+              100 + random.nextInt(300), 130 + random.nextInt(15), 3 + 2 * random.nextDouble(), 0.6 + 2 * random.nextDouble()));
+          break;
+        default:
+          appendWrapped(doc, random, 2 + random.nextInt(6));
+      }
+      doc.append('\n');
+    }
+    doc.setLength(numChars);
+    return doc.toString();
+  }
+
+  // narrative hard-wrapped at a fixed width, the way most notes in the corpus are
+  private static void appendWrapped(StringBuilder doc, Random random, int numSentences){
+    int lineStart = doc.length();
+    for(int i = 0; i < numSentences; i++){
+      for(String word : SENTENCES[random.nextInt(SENTENCES.length)].split(" ")){
+        if(doc.length() - lineStart + word.length() + 1 > LINE_LENGTH){
+          doc.append('\n');
+          lineStart = doc.length();
+        }else if(doc.length() > lineStart){
+          doc.append(' ');
+        }
+        doc.append(word);
+      }
+    }
+    doc.append('\n');
+  }
+}
@@ -0,0 +1,197 @@
+package org.apache.ctakes.core.cleartk.ae;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.ctakes.core.cleartk.ml.SharedModelRegistry;
+import org.apache.ctakes.core.resource.FileLocator;
+import org.cleartk.ml.jar.JarClassifierBuilder;
+
+/**
+ * The characters that were ever seen to begin a sentence, or to be the first character outside a sentence
+ * that just ended, in the training data. At inference time, a character outside a sentence that has never
+ * begun one can be tagged O, and a character inside a sentence that has never ended one can be tagged I,
+ * without asking the classifier.
+ * <p>
+ * The file format is one character per line, as its integer value, prefixed by B (begins a sentence) or
+ * E (ends a sentence). Training writes the file to the training directory and {@link #addToModelJar(File)}
+ * stores it in the model jar packaged there, so that the candidates travel with the model.
+ */
+public class BoundaryCandidates {
+
+  public static final String FILE_NAME = "candidateChars.txt";
+
+  private final BitSet beginChars = new BitSet(Character.MAX_VALUE+1);
+  private final BitSet endChars = new BitSet(Character.MAX_VALUE+1);
+
+  public void observe(String prevOutcome, String outcome, char ch){
+    if(outcome.equals("B")){
+      beginChars.set(ch);
+    }else if(outcome.equals("O") && !prevOutcome.equals("O")){
+      endChars.set(ch);
+    }
+  }
+
+  /**
+   * @return Whether the classifier could put a sentence boundary at this character given the previous outcome.
+   */
+  public boolean isCandidate(String prevOutcome, char ch){
+    if(prevOutcome.equals("O")){
+      return beginChars.get(ch);
+    }
+    return endChars.get(ch);
+  }
+
+  public void write(File outputFile) throws FileNotFoundException {
+    PrintWriter out = new PrintWriter(outputFile);
+    for(int ch = beginChars.nextSetBit(0); ch >= 0; ch = beginChars.nextSetBit(ch+1)){
+      out.print(String.format("B %d\n", ch));
+    }
+    for(int ch = endChars.nextSetBit(0); ch >= 0; ch = endChars.nextSetBit(ch+1)){
+      out.print(String.format("E %d\n", ch));
+    }
+    out.close();
+  }
+
+  public static BoundaryCandidates read(InputStream in){
+    BoundaryCandidates candidates = new BoundaryCandidates();
+    Scanner scanner = new Scanner(in);
+    while(scanner.hasNextLine()){
+      String[] pair = scanner.nextLine().trim().split(" ");
+      if(pair.length != 2) continue;
+      int ch = Integer.parseInt(pair[1]);
+      if(pair[0].equals("B")){
+        candidates.beginChars.set(ch);
+      }else if(pair[0].equals("E")){
+        candidates.endChars.set(ch);
+      }
+    }
+    scanner.close();
+    return candidates;
+  }
+
+  /**
+   * Store the candidates a training run wrote to its directory in the model.jar packaged there. Does nothing if the
+   * run wrote none.
+   */
+  public static void addToModelJar(File directory) throws IOException {
+    File candidateFile = new File(directory, FILE_NAME);
+    if(!candidateFile.isFile()){
+      return;
+    }
+    File modelJar = JarClassifierBuilder.getModelJarFile(directory);
+    File tmp = new File(directory, modelJar.getName() + ".tmp");
+    JarInputStream in = new JarInputStream(new FileInputStream(modelJar));
+    try{
+      Manifest manifest = in.getManifest();
+      FileOutputStream fileOut = new FileOutputStream(tmp);
+      JarOutputStream out = manifest == null ? new JarOutputStream(fileOut) : new JarOutputStream(fileOut, manifest);
+      try{
+        JarEntry entry;
+        while((entry = in.getNextJarEntry()) != null){
+          if(entry.getName().equals(FILE_NAME)){
+            continue;
+          }
+          out.putNextEntry(new JarEntry(entry.getName()));
+          copy(in, out);
+          out.closeEntry();
+        }
+        out.putNextEntry(new JarEntry(FILE_NAME));
+        InputStream candidatesIn = new FileInputStream(candidateFile);
+        try{
+          copy(candidatesIn, out);
+        }finally{
+          candidatesIn.close();
+        }
+        out.closeEntry();
+      }finally{
+        out.close();
+      }
+    }finally{
+      in.close();
+    }
+    try{
+      Files.move(tmp.toPath(), modelJar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }catch(AtomicMoveNotSupportedException e){
+      Files.move(tmp.toPath(), modelJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * @return The candidates stored in a model jar, or null if it has none.
+   */
+  public static BoundaryCandidates readFromJar(InputStream jarStream) throws IOException {
+    JarInputStream jar = new JarInputStream(jarStream);
+    try{
+      JarEntry entry;
+      while((entry = jar.getNextJarEntry()) != null){
+        if(entry.getName().equals(FILE_NAME)){
+          // read() closes its stream, so hand it a copy of the entry
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          copy(jar, bytes);
+          return read(new ByteArrayInputStream(bytes.toByteArray()));
+        }
+      }
+      return null;
+    }finally{
+      jar.close();
+    }
+  }
+
+  /**
+   * Get the shared candidates for a model: from candidateFile if it is given, otherwise from the model jar, or from
+   * a file next to the model jar for models packaged before the candidates were stored in them.
+   * @return The candidates, or null if there are none to be found.
+   */
+  public static BoundaryCandidates forModel(final String modelPath, final String candidateFile) throws IOException {
+    if(candidateFile != null){
+      return SharedModelRegistry.get("candidates", candidateFile, new Callable<BoundaryCandidates>(){
+        @Override
+        public BoundaryCandidates call() throws Exception {
+          try{
+            return read(FileLocator.getAsStream(candidateFile));
+          }catch(FileNotFoundException e){
+            return null;
+          }
+        }
+      });
+    }
+    return SharedModelRegistry.get("modelCandidates", modelPath, new Callable<BoundaryCandidates>(){
+      @Override
+      public BoundaryCandidates call() throws Exception {
+        BoundaryCandidates candidates = readFromJar(FileLocator.getAsStream(modelPath));
+        File besideModel = new File(new File(modelPath).getParentFile(), FILE_NAME);
+        if(candidates == null && besideModel.isFile()){
+          candidates = read(new FileInputStream(besideModel));
+        }
+        return candidates;
+      }
+    });
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int read;
+    while((read = in.read(buffer)) >= 0){
+      out.write(buffer, 0, read);
+    }
+  }
+}
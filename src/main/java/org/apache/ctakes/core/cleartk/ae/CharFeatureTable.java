@@ -0,0 +1,171 @@
+package org.apache.ctakes.core.cleartk.ae;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.cleartk.ml.Feature;
+
+/**
+ * Precomputed {@link SentenceDetectorAnnotator#getCharFeatures(char, String)} blocks for every character and
+ * every slot it can be seen in: slot 0 is the character being classified ("Character") and slots 1 to
+ * 2*windowSize+1 are the window offsets -windowSize to windowSize ("CharOffset_" + offset).
+ * <p>
+ * Latin-1 is filled in up front, the rest of the char range is filled in lazily one character at a time.
+ * Tables are immutable once a row is published and there is one per window size per JVM, so every annotator
+ * instance shares the same feature objects. Callers must not modify the returned arrays or features.
+ */
+public class CharFeatureTable {
+
+  private static final int PAGE_BITS = 8;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int NUM_PAGES = (Character.MAX_VALUE + 1) >> PAGE_BITS;
+
+  private static final ConcurrentMap<Integer,CharFeatureTable> tables = new ConcurrentHashMap<>();
+
+  private final int windowSize;
+  private final String[] prefixes;
+  // rows indexed by [character][slot]; page 0 is Latin-1
+  private final Feature[][][] latin1;
+  private final AtomicReferenceArray<AtomicReferenceArray<Feature[][]>> pages;
+
+  public static CharFeatureTable getInstance(int windowSize){
+    CharFeatureTable table = tables.get(windowSize);
+    if(table == null){
+      tables.putIfAbsent(windowSize, new CharFeatureTable(windowSize));
+      table = tables.get(windowSize);
+    }
+    return table;
+  }
+
+  private CharFeatureTable(int windowSize){
+    this.windowSize = windowSize;
+    this.prefixes = new String[2*windowSize+2];
+    this.prefixes[0] = "Character";
+    for(int offset = -windowSize; offset <= windowSize; offset++){
+      this.prefixes[getSlot(offset)] = "CharOffset_" + offset;
+    }
+    this.latin1 = new Feature[PAGE_SIZE][][];
+    for(char ch = 0; ch < PAGE_SIZE; ch++){
+      this.latin1[ch] = buildRow(ch);
+    }
+    this.pages = new AtomicReferenceArray<>(NUM_PAGES);
+  }
+
+  public int getWindowSize(){
+    return this.windowSize;
+  }
+
+  public int getNumSlots(){
+    return this.prefixes.length;
+  }
+
+  /**
+   * @return The slot for a window offset; the character being classified itself is slot 0.
+   */
+  public int getSlot(int offset){
+    return offset + this.windowSize + 1;
+  }
+
+  public String getPrefix(int slot){
+    return this.prefixes[slot];
+  }
+
+  public Feature[] get(char ch, int slot){
+    return getRow(ch)[slot];
+  }
+
+  /**
+   * @return The feature blocks of a character for every slot.
+   */
+  public Feature[][] getRow(char ch){
+    if(ch < PAGE_SIZE){
+      return this.latin1[ch];
+    }
+    int pageNum = ch >> PAGE_BITS;
+    AtomicReferenceArray<Feature[][]> page = this.pages.get(pageNum);
+    if(page == null){
+      this.pages.compareAndSet(pageNum, null, new AtomicReferenceArray<Feature[][]>(PAGE_SIZE));
+      page = this.pages.get(pageNum);
+    }
+    int ind = ch & (PAGE_SIZE-1);
+    Feature[][] row = page.get(ind);
+    if(row == null){
+      // racing threads build identical rows, only one of them is ever published
+      page.compareAndSet(ind, null, buildRow(ch));
+      row = page.get(ind);
+    }
+    return row;
+  }
+
+  private Feature[][] buildRow(char ch){
+    Feature[][] row = new Feature[this.prefixes.length][];
+    for(int slot = 0; slot < row.length; slot++){
+      row[slot] = SentenceDetectorAnnotator.getCharFeatures(ch, this.prefixes[slot]).toArray(new Feature[0]);
+    }
+    return row;
+  }
+
+  /**
+   * A ring buffer over the rows of the characters in the window around the current position of a text, so
+   * that each step only looks up the one character entering the window.
+   */
+  public static class Window {
+    private final CharFeatureTable table;
+    private final Feature[][][] ring;
+    private CharSequence text = null;
+    private int ind = 0;
+
+    public Window(CharFeatureTable table){
+      this.table = table;
+      this.ring = new Feature[2*table.getWindowSize()+1][][];
+    }
+
+    /**
+     * Start over at position 0 of a new text.
+     */
+    public void reset(CharSequence text){
+      this.text = text;
+      this.ind = 0;
+      int windowSize = this.table.getWindowSize();
+      for(int offset = -windowSize; offset <= windowSize; offset++){
+        fill(offset);
+      }
+    }
+
+    /**
+     * Move to the next position of the text.
+     */
+    public void advance(){
+      this.ind++;
+      fill(this.table.getWindowSize());
+    }
+
+    /**
+     * @return The features of the character at the given offset from the current position in that offset's
+     * slot, or null if the offset falls outside the text.
+     */
+    public Feature[] get(int offset){
+      Feature[][] row = this.ring[ringIndex(this.ind + offset)];
+      return row == null ? null : row[this.table.getSlot(offset)];
+    }
+
+    /**
+     * @return The features of the character at the current position in the "Character" slot.
+     */
+    public Feature[] getCurrent(){
+      return this.ring[ringIndex(this.ind)][0];
+    }
+
+    private void fill(int offset){
+      int pos = this.ind + offset;
+      this.ring[ringIndex(pos)] = pos >= 0 && pos < this.text.length() ? this.table.getRow(this.text.charAt(pos)) : null;
+    }
+
+    private int ringIndex(int pos){
+      // positions can be negative at the start of the text
+      int ringInd = pos % this.ring.length;
+      return ringInd < 0 ? ringInd + this.ring.length : ringInd;
+    }
+  }
+}
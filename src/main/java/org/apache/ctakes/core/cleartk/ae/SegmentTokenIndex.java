@@ -0,0 +1,148 @@
+package org.apache.ctakes.core.cleartk.ae;
+
+/**
+ * Whitespace tokenization of one segment's text, built in a single pass so that the previous and next
+ * token of any character position can be looked up in constant time.
+ * <p>
+ * A position's next token is the token it is in, or the first token after it if it is whitespace;
+ * its previous token is always the token before that one. Where there is no previous token, the first
+ * character of the text stands in for it, which is what the original character-by-character scan returned.
+ * Token strings and their lowercase/dotless variants are built at most once per token.
+ */
+public class SegmentTokenIndex {
+
+  private final CharSequence text;
+  private final int numTokens;
+  private final int[] begins;
+  private final int[] ends;
+  // for every position, the index of the token it is in or the next token after it (numTokens if there is none)
+  private final int[] nextTokenAt;
+
+  private final String[] tokens;
+  private final String[] lowerTokens;
+  private final String[] dotlessTokens;
+  private String firstChar = null;
+
+  public SegmentTokenIndex(CharSequence text){
+    this.text = text;
+    int length = text.length();
+    this.nextTokenAt = new int[length];
+
+    int count = 0;
+    for(int i = 0; i < length; i++){
+      if(!Character.isWhitespace(text.charAt(i)) && (i == 0 || Character.isWhitespace(text.charAt(i-1)))){
+        count++;
+      }
+    }
+    this.numTokens = count;
+    this.begins = new int[count];
+    this.ends = new int[count];
+
+    int tok = -1;
+    for(int i = 0; i < length; i++){
+      if(!Character.isWhitespace(text.charAt(i))){
+        if(i == 0 || Character.isWhitespace(text.charAt(i-1))){
+          tok++;
+          this.begins[tok] = i;
+        }
+        this.ends[tok] = i+1;
+      }
+    }
+    // walk backwards so whitespace positions point at the token that follows them
+    int next = count;
+    for(int i = length-1; i >= 0; i--){
+      if(next > 0 && i < this.ends[next-1]){
+        next--;
+      }
+      this.nextTokenAt[i] = next;
+    }
+
+    this.tokens = new String[count];
+    this.lowerTokens = new String[count];
+    this.dotlessTokens = new String[count];
+  }
+
+  public int size(){
+    return this.numTokens;
+  }
+
+  public int getBegin(int tok){
+    return this.begins[tok];
+  }
+
+  public int getEnd(int tok){
+    return this.ends[tok];
+  }
+
+  /**
+   * @return The index of the token containing pos, or of the next token if pos is whitespace. Equal to
+   * {@link #size()} if there is no such token.
+   */
+  public int getNextTokenId(int pos){
+    return this.nextTokenAt[pos];
+  }
+
+  /**
+   * @return The index of the token before the next token of pos, -1 if there is none.
+   */
+  public int getPrevTokenId(int pos){
+    return this.nextTokenAt[pos] - 1;
+  }
+
+  public String getNextToken(int pos){
+    return getToken(getNextTokenId(pos));
+  }
+
+  public String getPrevToken(int pos){
+    return getToken(getPrevTokenId(pos));
+  }
+
+  /**
+   * @return The token with the given index, the first character of the text for index -1, and the empty
+   * string for index {@link #size()}.
+   */
+  public String getToken(int tok){
+    if(tok < 0){
+      if(this.firstChar == null){
+        this.firstChar = this.text.subSequence(0, 1).toString();
+      }
+      return this.firstChar;
+    }else if(tok >= this.numTokens){
+      return "";
+    }
+    if(this.tokens[tok] == null){
+      this.tokens[tok] = this.text.subSequence(this.begins[tok], this.ends[tok]).toString();
+    }
+    return this.tokens[tok];
+  }
+
+  public String getLowerToken(int tok){
+    if(tok < 0 || tok >= this.numTokens){
+      return getToken(tok).toLowerCase();
+    }
+    if(this.lowerTokens[tok] == null){
+      this.lowerTokens[tok] = getToken(tok).toLowerCase();
+    }
+    return this.lowerTokens[tok];
+  }
+
+  /**
+   * @return The token with one trailing period removed, if it has one.
+   */
+  public String getDotlessToken(int tok){
+    if(tok < 0 || tok >= this.numTokens){
+      return dotless(getToken(tok));
+    }
+    if(this.dotlessTokens[tok] == null){
+      this.dotlessTokens[tok] = dotless(getToken(tok));
+    }
+    return this.dotlessTokens[tok];
+  }
+
+  public static String dotless(String token){
+    if(token.endsWith(".")){
+      return token.substring(0, token.length()-1);
+    }
+    return token;
+  }
+}
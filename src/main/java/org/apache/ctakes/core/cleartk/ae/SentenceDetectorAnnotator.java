@@ -2,16 +2,25 @@ package org.apache.ctakes.core.cleartk.ae;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import org.apache.ctakes.core.resource.FileLocator;
+import org.apache.ctakes.core.cleartk.ml.CompiledLinearScorer;
+import org.apache.ctakes.core.cleartk.ml.SharedJarClassifierFactory;
+import org.apache.ctakes.core.cleartk.ml.TokenLexicon;
 import org.apache.ctakes.typesystem.type.textspan.Segment;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
-import org.apache.ctakes.utils.struct.CounterMap;
 import org.apache.log4j.Logger;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineDescription;
@@ -24,6 +33,7 @@ import org.apache.uima.jcas.JCas;
 import org.apache.uima.jcas.tcas.Annotation;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.cleartk.ml.CleartkAnnotator;
+import org.cleartk.ml.CleartkProcessingException;
 import org.cleartk.ml.DataWriter;
 import org.cleartk.ml.Feature;
 import org.cleartk.ml.Instance;
@@ -38,41 +48,144 @@ public class SentenceDetectorAnnotator extends CleartkAnnotator<String>{
 
   private Logger logger = Logger.getLogger(SentenceDetectorAnnotator.class);
   private static final int WINDOW_SIZE = 3;
+  private static final int LATIN1_SIZE = 256;
+  private static final CharFeatureTable charFeatureTable = CharFeatureTable.getInstance(WINDOW_SIZE);
   
   public static enum FEAT_CONFIG {GILLICK, CHAR, SHAPE, LINE_POS, CHAR_SHAPE, CHAR_POS, CHAR_SHAPE_POS }
   public static final String PARAM_FEAT_CONFIG = "FeatureConfiguration";
   @ConfigurationParameter(name=PARAM_FEAT_CONFIG,mandatory=false)
   private FEAT_CONFIG featConfig=FEAT_CONFIG.CHAR;
   
+  // either a "token : count" text file or a lexicon compiled with CompileTokenLexicon (.lex)
   public static final String PARAM_TOKEN_FILE = "TokenFilename";
+  public static final String DEFAULT_TOKEN_FILE = "org/apache/ctakes/core/sentdetect/tokenCounts.txt";
   @ConfigurationParameter(name=PARAM_TOKEN_FILE,mandatory=false)
-  private String tokenCountFile = "org/apache/ctakes/core/sentdetect/tokenCounts.txt";
-  CounterMap<String> tokenCounts = new CounterMap<>();
+  private String tokenCountFile = DEFAULT_TOKEN_FILE;
+  TokenLexicon tokenCounts = null;
+
+  public static final String PARAM_COMPILED_SCORER = "UseCompiledScorer";
+  @ConfigurationParameter(name=PARAM_COMPILED_SCORER,mandatory=false)
+  private boolean useCompiledScorer = false;
+  private CompiledLinearScorer scorer = null;
+
+  public static final String PARAM_CANDIDATE_FILTER = "UseCandidateFilter";
+  @ConfigurationParameter(name=PARAM_CANDIDATE_FILTER,mandatory=false)
+  private boolean useCandidateFilter = false;
+  
+  // by default the candidates are read from the model jar
+  public static final String PARAM_CANDIDATE_FILE = "CandidateFilename";
+  @ConfigurationParameter(name=PARAM_CANDIDATE_FILE,mandatory=false)
+  private String candidateFile = null;
+  private BoundaryCandidates candidates = null;
+  
+  // throughput counters, reported when the collection is complete
+  private long numChars = 0;
+  private long numClassified = 0;
+  private long numFiltered = 0;
+  private long processNanos = 0;
 
   private HashMap<Integer,Double> endCounts = null;
   private double maxLineStrength = -1;
   private int maxLineLength = -1;
   
+  // number of threads tagging the segments of a document concurrently (inference only); 1 tags them in order on the calling thread.
+  // This needs a segmenter that gives a document several Segments. Calls to the ClearTK classifier are serialized, so more
+  // threads only speed up feature extraction unless UseCompiledScorer is set.
+  public static final String PARAM_SEGMENT_THREADS = "SegmentThreads";
+  @ConfigurationParameter(name=PARAM_SEGMENT_THREADS,mandatory=false)
+  private int segmentThreads = 1;
+  private ForkJoinPool segmentPool = null;
+  
+  // contributions to the compiled scorer of each (window offset, character) pair and of each previous outcome.
+  // These are shared by concurrently tagged segments, so they are filled up front or through a concurrent map.
+  private double[][][] charContribs = null;
+  private ConcurrentMap<Integer,double[]> extendedCharContribs = null;
+  private Map<String,double[]> prevOutcomeContribs = null;
+  
   @Override
   public void initialize(UimaContext context)
       throws ResourceInitializationException {
     super.initialize(context);
     try{
-      Scanner scanner = new Scanner(FileLocator.getAsStream(tokenCountFile));
-      while(scanner.hasNextLine()){
-        String[] pair = scanner.nextLine().trim().split(" : ");
-        if(pair.length == 2){
-          tokenCounts.put(pair[0], Integer.parseInt(pair[1]));
+      // shared by every annotator using the same file, and memory-mapped if it is a compiled lexicon
+      tokenCounts = TokenLexicon.getInstance(tokenCountFile);
+    }catch(IOException e){
+      throw new ResourceInitializationException(e);
+    }
+    
+    if(!this.isTraining() && useCompiledScorer){
+      String modelPath = (String) context.getConfigParameterValue(GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH);
+      try{
+        scorer = CompiledLinearScorer.getInstance(modelPath);
+      }catch(IOException e){
+        throw new ResourceInitializationException(e);
+      }
+      try{
+        charContribs = new double[charFeatureTable.getNumSlots()][LATIN1_SIZE][];
+        for(int slot = 0; slot < charContribs.length; slot++){
+          for(char ch = 0; ch < LATIN1_SIZE; ch++){
+            charContribs[slot][ch] = scorer.compile(Arrays.asList(charFeatureTable.get(ch, slot)));
+          }
+        }
+        extendedCharContribs = new ConcurrentHashMap<>();
+        prevOutcomeContribs = new HashMap<>();
+        for(String outcome : new String[]{"B", "I", "O"}){
+          prevOutcomeContribs.put(outcome, scorer.compile(Arrays.asList(new Feature("PrevOutcome", outcome))));
         }
+      }catch(CleartkProcessingException e){
+        throw new ResourceInitializationException(e);
       }
-      scanner.close();
-    }catch(FileNotFoundException e){
-      throw new ResourceInitializationException(e);
+    }
+    
+    if(!this.isTraining() && segmentThreads > 1){
+      segmentPool = new ForkJoinPool(segmentThreads);
+    }
+    
+    if(this.isTraining()){
+      candidates = new BoundaryCandidates();
+    }else if(useCandidateFilter){
+      String modelPath = (String) context.getConfigParameterValue(GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH);
+      try{
+        candidates = BoundaryCandidates.forModel(modelPath, candidateFile);
+      }catch(IOException e){
+        throw new ResourceInitializationException(e);
+      }
+      if(candidates == null){
+        logger.warn(String.format("No boundary candidates in %s, so every character goes to the classifier",
+            candidateFile != null ? candidateFile : modelPath));
+      }
+    }
+  }
+  
+  @Override
+  public void destroy() {
+    super.destroy();
+    if(segmentPool != null){
+      segmentPool.shutdown();
+    }
+  }
+  
+  @Override
+  public void collectionProcessComplete()
+      throws AnalysisEngineProcessException {
+    super.collectionProcessComplete();
+    if(this.isTraining()){
+      String outputDirectory = (String) this.getContext().getConfigParameterValue(DirectoryDataWriterFactory.PARAM_OUTPUT_DIRECTORY);
+      try{
+        candidates.write(new File(outputDirectory, BoundaryCandidates.FILE_NAME));
+      }catch(FileNotFoundException e){
+        throw new AnalysisEngineProcessException(e);
+      }
+    }else if(numChars > 0){
+      logger.info(String.format("%s (compiled scorer %s, candidate filter %s): %d chars, %d classifier calls, %d avoided by the candidate filter (%.1f%%), %.0f chars/sec",
+          featConfig, scorer != null ? "on" : "off", candidates != null ? "on" : "off", numChars, numClassified, numFiltered,
+          100.0 * numFiltered / numChars, numChars / (processNanos / 1e9)));
     }
   }
   
   @Override
   public void process(JCas jcas) throws AnalysisEngineProcessException {
+    long start = System.nanoTime();
     String uri=null;
     try{
       uri = ViewUriUtil.getURI(jcas).toString();
@@ -81,52 +194,101 @@ public class SentenceDetectorAnnotator extends CleartkAnnotator<String>{
       logger.debug("No uri found, probably not a big deal unless this is an evaluation.");
     }
     
-    if(featConfig == FEAT_CONFIG.LINE_POS || featConfig == FEAT_CONFIG.CHAR_POS || featConfig == FEAT_CONFIG.CHAR_SHAPE_POS){
+    if(usePositionFeatures()){
       buildDocEndlineModel(jcas);
     }
     
-    for(Segment seg : JCasUtil.select(jcas, Segment.class)){
-      // keep track of next sentence during training
-      List<Sentence> sents = JCasUtil.selectCovered(jcas, Sentence.class, seg);
+    if(this.isTraining()){
+      for(Segment seg : JCasUtil.select(jcas, Segment.class)){
+        // keep track of next sentence during training
+        List<Sentence> sents = JCasUtil.selectCovered(jcas, Sentence.class, seg);
+        new SegmentTagger(seg, sents).tag();
+      }
+    }else{
+      List<SegmentTagger> taggers = new ArrayList<>();
+      for(Segment seg : JCasUtil.select(jcas, Segment.class)){
+        taggers.add(new SegmentTagger(seg, null));
+      }
+      if(segmentPool != null && taggers.size() > 1){
+        try{
+          for(Future<SegmentTagger> future : segmentPool.invokeAll(taggers)){
+            future.get();
+          }
+        }catch(InterruptedException | ExecutionException e){
+          throw new AnalysisEngineProcessException(e);
+        }
+      }else{
+        for(SegmentTagger tagger : taggers){
+          tagger.tag();
+        }
+      }
+      // the CAS is only written to here, on the calling thread, in segment order
+      for(SegmentTagger tagger : taggers){
+        for(int i = 0; i < tagger.numSpans; i += 2){
+          makeSentence(jcas, tagger.spans[i], tagger.spans[i+1]);
+        }
+        numChars += tagger.numChars;
+        numClassified += tagger.numClassified;
+        numFiltered += tagger.numFiltered;
+      }
+    }
+    processNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * Classifies every character in one Segment as Begin, Inside, or Outside a Sentence. All state that changes while
+   * a segment is tagged lives here and the annotator's fields are only read, so segments can be tagged concurrently.
+   * At inference time sentence spans are collected in a buffer instead of being added to the CAS.
+   */
+  private class SegmentTagger implements Callable<SegmentTagger> {
+    private final String segText;
+    private final int segBegin;
+    private final List<Sentence> sents;
+    private final SegmentTokenIndex tokens;
+    private final CharFeatureTable.Window window;
+    
+    // compiled scorer state: the score buffer and the contribution of the token pair the last position was in
+    private final double[] scores;
+    private int cachedNextTokenId = -1;
+    private double[] cachedTokenContrib = null;
+    
+    // begin and end offsets of the sentences found
+    private int[] spans = new int[16];
+    private int numSpans = 0;
+    
+    private long numChars = 0;
+    private long numClassified = 0;
+    private long numFiltered = 0;
+    
+    public SegmentTagger(Segment seg, List<Sentence> sents){
+      this.segText = seg.getCoveredText();
+      this.segBegin = seg.getBegin();
+      this.sents = sents;
+      this.tokens = new SegmentTokenIndex(segText);
+      this.window = new CharFeatureTable.Window(charFeatureTable);
+      this.scores = scorer == null ? null : new double[scorer.getNumScores()];
+    }
+    
+    @Override
+    public SegmentTagger call() throws AnalysisEngineProcessException {
+      tag();
+      return this;
+    }
+    
+    public void tag() throws AnalysisEngineProcessException {
       int sentInd = 0;
-      Sentence nextSent = sents.size() > 0 ? sents.get(sentInd++) : null;
+      Sentence nextSent = sents != null && sents.size() > 0 ? sents.get(sentInd++) : null;
       int startInd=0;
       
       // Iterate over every character in the Segment and classify it as Begin, Inside, or Outside a Sentence
       String prevOutcome = "O";
-      String segText = seg.getCoveredText();
+      window.reset(segText);
       for(int ind = 0; ind < segText.length(); ind++){
-        List<Feature> feats = new ArrayList<>();
-        
         char curChar = segText.charAt(ind);
         
-        // Start collecting features:
-        feats.add(new Feature("PrevOutcome", prevOutcome));
-        
-        // all systems get to know about the current char they're classifying (i.e. is this a period)
-        feats.addAll(getCharFeatures(curChar, "Character"));
-
-        if(featConfig == FEAT_CONFIG.CHAR || featConfig == FEAT_CONFIG.CHAR_POS || featConfig == FEAT_CONFIG.CHAR_SHAPE || featConfig == FEAT_CONFIG.CHAR_SHAPE_POS){
-          for(int window = -WINDOW_SIZE; window <= WINDOW_SIZE; window++){
-            if(ind+window >= 0 && ind+window < segText.length()){
-              char conChar = segText.charAt(ind+window);
-              feats.addAll(getCharFeatures(conChar, "CharOffset_"+window));
-            }
-          }
-        }
-        
-        
-        String nextToken = getNextToken(segText, ind);
-        String prevToken = getPrevToken(segText, ind);
-        feats.addAll(getTokenFeatures(prevToken, nextToken, "Token")); 
-
-        if(featConfig == FEAT_CONFIG.LINE_POS || featConfig == FEAT_CONFIG.CHAR_POS || featConfig == FEAT_CONFIG.CHAR_SHAPE_POS){
-          feats.addAll(getPositionFeatures(curChar, ind, segText, nextToken));
-        }
-
         String outcome;
-        int casInd = seg.getBegin() + ind;
-        if(this.isTraining()){
+        int casInd = segBegin + ind;
+        if(isTraining()){
           // if ind pointer has passed nextSent pointer advance nextSent
           while(nextSent != null && nextSent.getEnd() < casInd && sentInd < sents.size()){
             nextSent = sents.get(sentInd++);
@@ -143,39 +305,158 @@ public class SentenceDetectorAnnotator extends CleartkAnnotator<String>{
             // current index is in the middle of a sentence
             outcome = "I";
           }
-          this.dataWriter.write(new Instance<String>(outcome, feats));
+          dataWriter.write(new Instance<String>(outcome, getFeatures(ind, prevOutcome)));
+          candidates.observe(prevOutcome, outcome, curChar);
         }else{
+          numChars++;
           if(!prevOutcome.equals("O") && Character.isLetterOrDigit(curChar)){
             outcome = "I";
+          }else if(candidates != null && !candidates.isCandidate(prevOutcome, curChar)){
+            // this character never started or ended a sentence in training, so stay in the current state
+            outcome = prevOutcome.equals("O") ? "O" : "I";
+            numFiltered++;
+          }else if(scorer != null){
+            outcome = classifyCompiled(ind, prevOutcome);
+            numClassified++;
           }else{
-            outcome = this.classifier.classify(feats);
-            if(outcome.equals("B")) startInd = casInd;
-            else if(outcome.equals("O") && 
-                (prevOutcome.equals("I") || prevOutcome.equals("B"))){
-              // just ended a sentence
-              int endInd = casInd;
-              while(endInd > startInd && Character.isWhitespace(segText.charAt(endInd-seg.getBegin()-1))){
-                endInd--;
-              }
+            // the classifier (and its features encoder) is shared, so concurrently tagged segments take turns
+            synchronized(classifier){
+              outcome = classifier.classify(getFeatures(ind, prevOutcome));
+            }
+            numClassified++;
+          }
+          if(outcome.equals("B")) startInd = casInd;
+          else if(outcome.equals("O") && 
+              (prevOutcome.equals("I") || prevOutcome.equals("B"))){
+            // just ended a sentence
+            int endInd = casInd;
+            while(endInd > startInd && Character.isWhitespace(segText.charAt(endInd-segBegin-1))){
+              endInd--;
+            }
 
-              if(endInd > startInd){
-                makeSentence(jcas, startInd, endInd);
-              }
+            if(endInd > startInd){
+              addSpan(startInd, endInd);
             }
           }
         }
         prevOutcome = outcome;
+        window.advance();
       }
       // One final sentence at the end of the segment if we were in the middle of one when we ran out of characters.
-      if(!this.isTraining() && !prevOutcome.equals("O")){
+      if(!isTraining() && !prevOutcome.equals("O")){
         // segment ended with a sentence
-        makeSentence(jcas, startInd, seg.getEnd());
+        addSpan(startInd, segBegin + segText.length());
       }
     }
-  }
+    
+    private void addSpan(int begin, int end){
+      if(numSpans == spans.length){
+        spans = Arrays.copyOf(spans, 2 * spans.length);
+      }
+      spans[numSpans++] = begin;
+      spans[numSpans++] = end;
+    }
+    
+    // window has to be positioned at ind
+    private List<Feature> getFeatures(int ind, String prevOutcome){
+      List<Feature> feats = new ArrayList<>(64);
+      
+      char curChar = segText.charAt(ind);
+      
+      // Start collecting features:
+      feats.add(new Feature("PrevOutcome", prevOutcome));
+      
+      // all systems get to know about the current char they're classifying (i.e. is this a period)
+      Collections.addAll(feats, window.getCurrent());
+
+      if(useCharWindow()){
+        for(int offset = -WINDOW_SIZE; offset <= WINDOW_SIZE; offset++){
+          Feature[] charFeats = window.get(offset);
+          if(charFeats != null){
+            Collections.addAll(feats, charFeats);
+          }
+        }
+      }
+      
+      
+      int nextTokenId = tokens.getNextTokenId(ind);
+      int prevTokenId = tokens.getPrevTokenId(ind);
+      feats.addAll(getTokenFeatures(tokens.getToken(prevTokenId), tokens.getDotlessToken(prevTokenId),
+          tokens.getToken(nextTokenId), tokens.getLowerToken(nextTokenId), "Token")); 
 
+      if(usePositionFeatures()){
+        feats.addAll(getPositionFeatures(curChar, ind, segText, tokens.getToken(nextTokenId)));
+      }
+      return feats;
+    }
+    
+    // Same decision as classifier.classify(getFeatures(ind, prevOutcome)), but from cached contributions
+    private String classifyCompiled(int ind, String prevOutcome) throws CleartkProcessingException {
+      char curChar = segText.charAt(ind);
+      scorer.clear(scores);
+      
+      CompiledLinearScorer.add(prevOutcomeContribs.get(prevOutcome), scores);
+      
+      CompiledLinearScorer.add(getCharContrib(0, curChar), scores);
+      if(useCharWindow()){
+        for(int offset = -WINDOW_SIZE; offset <= WINDOW_SIZE; offset++){
+          if(ind+offset >= 0 && ind+offset < segText.length()){
+            CompiledLinearScorer.add(getCharContrib(charFeatureTable.getSlot(offset), segText.charAt(ind+offset)), scores);
+          }
+        }
+      }
+      
+      // the previous token is determined by the next one, so every position with the same next token has the same token features
+      int nextTokenId = tokens.getNextTokenId(ind);
+      if(nextTokenId != cachedNextTokenId){
+        int prevTokenId = tokens.getPrevTokenId(ind);
+        cachedTokenContrib = scorer.compile(getTokenFeatures(tokens.getToken(prevTokenId), tokens.getDotlessToken(prevTokenId),
+            tokens.getToken(nextTokenId), tokens.getLowerToken(nextTokenId), "Token"));
+        cachedNextTokenId = nextTokenId;
+      }
+      CompiledLinearScorer.add(cachedTokenContrib, scores);
+      
+      // position features only fire on newlines so they are not worth caching
+      if(usePositionFeatures() && curChar == '\n'){
+        CompiledLinearScorer.add(scorer.compile(getPositionFeatures(curChar, ind, segText, tokens.getToken(nextTokenId))), scores);
+      }
+      
+      return scorer.decide(scores);
+    }
+  }
+  
+  // slots are the ones used by CharFeatureTable. Latin-1 is compiled up front, anything else on first use.
+  private double[] getCharContrib(int slot, char ch) throws CleartkProcessingException {
+    if(ch < LATIN1_SIZE){
+      return charContribs[slot][ch];
+    }
+    int key = (slot << 16) | ch;
+    double[] contrib = extendedCharContribs.get(key);
+    if(contrib == null){
+      contrib = scorer.compile(Arrays.asList(charFeatureTable.get(ch, slot)));
+      extendedCharContribs.putIfAbsent(key, contrib);
+    }
+    return contrib;
+  }
+  
+  private boolean useCharWindow(){
+    return useCharWindow(featConfig);
+  }
+  
+  private boolean usePositionFeatures(){
+    return usePositionFeatures(featConfig);
+  }
+  
+  public static boolean useCharWindow(FEAT_CONFIG featConfig){
+    return featConfig == FEAT_CONFIG.CHAR || featConfig == FEAT_CONFIG.CHAR_POS || featConfig == FEAT_CONFIG.CHAR_SHAPE || featConfig == FEAT_CONFIG.CHAR_SHAPE_POS;
+  }
+  
+  // position features need the line lengths of the whole document
+  public static boolean usePositionFeatures(FEAT_CONFIG featConfig){
+    return featConfig == FEAT_CONFIG.LINE_POS || featConfig == FEAT_CONFIG.CHAR_POS || featConfig == FEAT_CONFIG.CHAR_SHAPE_POS;
+  }
 
-  private void buildDocEndlineModel(JCas jcas) {
+  public void buildDocEndlineModel(JCas jcas) {
     int window = 5;
     HashMap<Integer,Double> rawCounts = new HashMap<>();
     endCounts = new HashMap<>();
@@ -233,48 +514,14 @@ public class SentenceDetectorAnnotator extends CleartkAnnotator<String>{
     }
   }
   
-  private static String getNextToken(String segText, int ind) {
-    int startInd = ind;
-    
-    // move startInd right if it's whitespace and left if it's not.
-    while(startInd < segText.length() && Character.isWhitespace(segText.charAt(startInd))){
-      startInd++;
-    }
-    while(startInd > 0 && !Character.isWhitespace(segText.charAt(startInd-1))){
-      startInd--;
-    }
-    
-    int endInd = startInd;
-    while(endInd < segText.length() && !Character.isWhitespace(segText.charAt(endInd))){
-      endInd++;
-    }
-    
-    return segText.substring(startInd, endInd);    
-  }
+  static CharacterCategoryPatternFunction<Annotation> shapeFun = new CharacterCategoryPatternFunction<>(PatternType.REPEATS_AS_KLEENE_PLUS);
   
-  private static String getPrevToken(String segText, int ind){
-    int endInd = ind;
-    
-    // move endInd left until we hit whitespace:
-    while(endInd > 0 && !Character.isWhitespace(segText.charAt(endInd))){
-      endInd--;
-    }
-    // then move until the character to the left is whitespace
-    while(endInd > 0 && Character.isWhitespace(segText.charAt(endInd))){
-      endInd--;
-    }
-    
-    int startInd = endInd;
-    while(startInd > 0 && !Character.isWhitespace(segText.charAt(startInd)) && !Character.isWhitespace(segText.charAt(startInd-1))){
-      startInd--;
-    }
-    
-    return segText.substring(startInd, endInd+1);
+  private List<Feature> getTokenFeatures(String prevToken, String prevDotless, String nextToken, String nextLower, String prefix) {
+    return getTokenFeatures(featConfig, tokenCounts, prevToken, prevDotless, nextToken, nextLower, prefix);
   }
-
-  static CharacterCategoryPatternFunction<Annotation> shapeFun = new CharacterCategoryPatternFunction<>(PatternType.REPEATS_AS_KLEENE_PLUS);
   
-  private Collection<? extends Feature> getTokenFeatures(String prevToken, String nextToken, String prefix) {
+  // prevDotless and nextLower are passed in so that they are computed once per token rather than once per character
+  public static List<Feature> getTokenFeatures(FEAT_CONFIG featConfig, TokenLexicon tokenCounts, String prevToken, String prevDotless, String nextToken, String nextLower, String prefix) {
     List<Feature> feats = new ArrayList<>();
     
     // identity features (1 & 2 in Table 1, Gillick 2009)
@@ -299,13 +546,9 @@ public class SentenceDetectorAnnotator extends CleartkAnnotator<String>{
     }
     
     // token count features (5 & 6 in gillick)
-    int rightLower = (int) Math.round(Math.log(tokenCounts.get(nextToken.toLowerCase())));
+    int rightLower = (int) Math.round(Math.log(tokenCounts.get(nextLower)));
     feats.add(new Feature(prefix + "_RightLower_"+ rightLower, true));
 
-    String prevDotless = prevToken;
-    if(prevToken.endsWith(".")){
-      prevDotless = prevToken.substring(0, prevToken.length()-1);
-    }
     int leftDotless = (int) Math.round(Math.log(tokenCounts.get(prevDotless)));
     feats.add(new Feature(prefix + "_LeftDotless_" + leftDotless, true));
     
@@ -316,6 +559,7 @@ public class SentenceDetectorAnnotator extends CleartkAnnotator<String>{
     return feats;
   }
 
+  // see CharFeatureTable for shared, precomputed copies of these
   public static List<Feature> getCharFeatures(char ch, String prefix){
     List<Feature> feats = new ArrayList<>();
     feats.add(new Feature(prefix+"_Id", ch == '\n' ? "<LF>" : ch));
@@ -379,6 +623,8 @@ public class SentenceDetectorAnnotator extends CleartkAnnotator<String>{
         false,
         GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH,
         modelPath,
+        SentenceDetectorAnnotator.PARAM_CLASSIFIER_FACTORY_CLASS_NAME,
+        SharedJarClassifierFactory.class.getName(),
         SentenceDetectorAnnotator.PARAM_FEAT_CONFIG,
         SentenceDetectorAnnotator.FEAT_CONFIG.CHAR);
   }
@@ -0,0 +1,330 @@
+package org.apache.ctakes.core.cleartk.ae;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.ctakes.core.cleartk.ae.SentenceDetectorAnnotator.FEAT_CONFIG;
+import org.apache.ctakes.core.cleartk.ml.CompiledLinearScorer;
+import org.apache.ctakes.core.cleartk.ml.TokenLexicon;
+import org.apache.log4j.Logger;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+
+/**
+ * Sentence segmentation of a stream of text without UIMA: text is pushed in chunk by chunk and sentence offsets
+ * are handed to a {@link SentenceHandler} as soon as they are final. It uses the same features and model as
+ * {@link SentenceDetectorAnnotator} (through the {@link CompiledLinearScorer}), and treats the whole stream the way
+ * the annotator treats one Segment, so it finds the same sentences as the annotator does over a document with a
+ * single Segment.
+ * <p>
+ * A character is classified once the characters WINDOW_SIZE ahead of it and the whole token it is in (or the next
+ * token, if it is whitespace) have arrived. Only those characters are kept, so memory does not grow with the length
+ * of the stream unless a single token does. Position features need the line lengths of the whole document, so
+ * configurations that use them are not supported.
+ * <p>
+ * Offsets are relative to the start of the stream. Instances are not thread-safe; use one per stream and call
+ * {@link #reset()} before reusing it for another.
+ */
+public class StreamingSentenceSegmenter {
+
+  public static interface SentenceHandler {
+    /**
+     * Called once for every sentence, in order, with whitespace trimmed off both ends.
+     */
+    public void handleSentence(long begin, long end) throws IOException;
+  }
+
+  private static final int WINDOW_SIZE = 3;
+  private static final CharFeatureTable charFeatureTable = CharFeatureTable.getInstance(WINDOW_SIZE);
+  private static final int LATIN1_SIZE = 256;
+  private static final int READ_SIZE = 8192;
+  private static final Logger logger = Logger.getLogger(StreamingSentenceSegmenter.class);
+
+  private final CompiledLinearScorer scorer;
+  private final TokenLexicon tokenCounts;
+  private final FEAT_CONFIG featConfig;
+  private final BoundaryCandidates candidates;
+  private final SentenceHandler handler;
+  private final double[] scores;
+
+  // the characters that are still needed, buf[0] being the character at offset bufStart of the stream
+  private char[] buf = new char[256];
+  private int bufLen = 0;
+  private long bufStart = 0;
+
+  // completed tokens whose end is after the next position to classify; the first one is its next token
+  private final Deque<Token> tokens = new ArrayDeque<>();
+  private Token prevToken = null;
+  private long openTokenBegin = -1;
+  private String firstChar = null;
+
+  private long pos = 0;
+  private String prevOutcome = "O";
+  private Token cachedToken = null;
+  private double[] cachedTokenContrib = null;
+
+  // where the current sentence began, the first non-whitespace character since then, and the end of the last
+  // non-whitespace character, which is all SentenceDetectorAnnotator looks at when it trims a sentence
+  private long startInd = 0;
+  private long firstNonSpace = -1;
+  private long lastNonSpaceEnd = -1;
+
+  // compiled contributions of Latin-1 characters in each window slot and of each previous outcome
+  private final double[][][] charContribs = new double[charFeatureTable.getNumSlots()][LATIN1_SIZE][];
+  private final Map<String,double[]> prevOutcomeContribs = new HashMap<>();
+
+  public StreamingSentenceSegmenter(CompiledLinearScorer scorer, TokenLexicon tokenCounts, FEAT_CONFIG featConfig,
+      BoundaryCandidates candidates, SentenceHandler handler){
+    if(SentenceDetectorAnnotator.usePositionFeatures(featConfig)){
+      throw new IllegalArgumentException("Position features need the whole document and cannot be streamed: " + featConfig);
+    }
+    this.scorer = scorer;
+    this.tokenCounts = tokenCounts;
+    this.featConfig = featConfig;
+    this.candidates = candidates;
+    this.handler = handler;
+    this.scores = new double[scorer.getNumScores()];
+  }
+
+  /**
+   * Segment with a model jar trained by SentenceDetectorAnnotator and the default token counts, without the candidate
+   * filter. The model and counts are shared with every other user of the same files.
+   */
+  public static StreamingSentenceSegmenter create(String modelPath, FEAT_CONFIG featConfig, SentenceHandler handler) throws IOException {
+    return create(modelPath, featConfig, false, null, handler);
+  }
+
+  /**
+   * Segment with a model jar trained by SentenceDetectorAnnotator and the default token counts, making the same
+   * decisions as the annotator run with the same {@link SentenceDetectorAnnotator#PARAM_CANDIDATE_FILTER} and
+   * {@link SentenceDetectorAnnotator#PARAM_CANDIDATE_FILE}. The model, counts and candidates are shared with every
+   * other user of the same files, the annotator included.
+   * @param candidateFile The boundary candidates, or null for the ones stored with the model.
+   */
+  public static StreamingSentenceSegmenter create(String modelPath, FEAT_CONFIG featConfig, boolean useCandidateFilter,
+      String candidateFile, SentenceHandler handler) throws IOException {
+    BoundaryCandidates candidates = null;
+    if(useCandidateFilter){
+      candidates = BoundaryCandidates.forModel(modelPath, candidateFile);
+      if(candidates == null){
+        logger.warn(String.format("No boundary candidates in %s, so every character goes to the classifier",
+            candidateFile != null ? candidateFile : modelPath));
+      }
+    }
+    return new StreamingSentenceSegmenter(CompiledLinearScorer.getInstance(modelPath),
+        TokenLexicon.getInstance(SentenceDetectorAnnotator.DEFAULT_TOKEN_FILE), featConfig, candidates, handler);
+  }
+
+  /**
+   * Segment everything the reader returns, then {@link #finish()}. The reader is not closed.
+   */
+  public void segment(Reader reader) throws IOException {
+    char[] chunk = new char[READ_SIZE];
+    int len;
+    while((len = reader.read(chunk)) != -1){
+      append(CharBuffer.wrap(chunk, 0, len));
+    }
+    finish();
+  }
+
+  /**
+   * Add the next chunk of the stream and classify every character that can now be classified.
+   */
+  public void append(CharSequence chunk) throws IOException {
+    for(int i = 0; i < chunk.length(); i++){
+      char ch = chunk.charAt(i);
+      long offset = bufStart + bufLen;
+      if(firstChar == null){
+        firstChar = String.valueOf(ch);
+      }
+      if(Character.isWhitespace(ch)){
+        if(openTokenBegin >= 0){
+          closeToken(offset);
+        }
+      }else if(openTokenBegin < 0){
+        openTokenBegin = offset;
+      }
+      if(bufLen == buf.length){
+        classify(false);
+        compact();
+      }
+      buf[bufLen++] = ch;
+    }
+    classify(false);
+  }
+
+  /**
+   * Mark the end of the stream: classify what is left and emit the last sentence if it runs up to the end.
+   */
+  public void finish() throws IOException {
+    if(openTokenBegin >= 0){
+      closeToken(bufStart + bufLen);
+    }
+    classify(true);
+    if(!prevOutcome.equals("O")){
+      emitSentence();
+    }
+  }
+
+  /**
+   * Forget the current stream so the segmenter can be used for another one.
+   */
+  public void reset(){
+    bufLen = 0;
+    bufStart = 0;
+    tokens.clear();
+    prevToken = null;
+    openTokenBegin = -1;
+    firstChar = null;
+    pos = 0;
+    prevOutcome = "O";
+    cachedToken = null;
+    cachedTokenContrib = null;
+    startInd = 0;
+    firstNonSpace = -1;
+    lastNonSpaceEnd = -1;
+  }
+
+  private void closeToken(long end){
+    tokens.add(new Token(new String(buf, (int) (openTokenBegin - bufStart), (int) (end - openTokenBegin))));
+    tokens.getLast().end = end;
+    openTokenBegin = -1;
+  }
+
+  // drop the characters that are no longer needed, growing the buffer if everything still is
+  private void compact(){
+    long keepFrom = pos - WINDOW_SIZE;
+    if(openTokenBegin >= 0 && openTokenBegin < keepFrom){
+      keepFrom = openTokenBegin;
+    }
+    int drop = (int) Math.max(0, keepFrom - bufStart);
+    if(drop > 0){
+      System.arraycopy(buf, drop, buf, 0, bufLen - drop);
+      bufLen -= drop;
+      bufStart += drop;
+    }
+    if(bufLen > buf.length / 2){
+      char[] bigger = new char[2 * buf.length];
+      System.arraycopy(buf, 0, bigger, 0, bufLen);
+      buf = bigger;
+    }
+  }
+
+  private char charAt(long offset){
+    return buf[(int) (offset - bufStart)];
+  }
+
+  private void classify(boolean atEnd) throws IOException {
+    long available = bufStart + bufLen;
+    while(pos < available){
+      if(!atEnd && pos + WINDOW_SIZE >= available){
+        break;
+      }
+      while(!tokens.isEmpty() && tokens.peekFirst().end <= pos){
+        prevToken = tokens.pollFirst();
+      }
+      if(!atEnd && tokens.isEmpty()){
+        // the next token has not been completed yet
+        break;
+      }
+
+      char curChar = charAt(pos);
+      String outcome;
+      if(!prevOutcome.equals("O") && Character.isLetterOrDigit(curChar)){
+        outcome = "I";
+      }else if(candidates != null && !candidates.isCandidate(prevOutcome, curChar)){
+        outcome = prevOutcome.equals("O") ? "O" : "I";
+      }else{
+        try{
+          outcome = score(curChar, available);
+        }catch(CleartkProcessingException e){
+          throw new IOException(e);
+        }
+      }
+
+      if(outcome.equals("B")){
+        startInd = pos;
+        firstNonSpace = -1;
+      }else if(outcome.equals("O") && !prevOutcome.equals("O")){
+        // just ended a sentence
+        emitSentence();
+      }
+      if(!Character.isWhitespace(curChar)){
+        if(firstNonSpace < 0){
+          firstNonSpace = pos;
+        }
+        lastNonSpaceEnd = pos + 1;
+      }
+      prevOutcome = outcome;
+      pos++;
+    }
+  }
+
+  private void emitSentence() throws IOException {
+    if(firstNonSpace >= 0 && lastNonSpaceEnd > firstNonSpace){
+      handler.handleSentence(firstNonSpace, lastNonSpaceEnd);
+    }
+  }
+
+  // the features are the ones SentenceDetectorAnnotator extracts for the same position
+  private String score(char curChar, long available) throws CleartkProcessingException {
+    scorer.clear(scores);
+    double[] prevOutcomeContrib = prevOutcomeContribs.get(prevOutcome);
+    if(prevOutcomeContrib == null){
+      prevOutcomeContrib = scorer.compile(Arrays.asList(new Feature("PrevOutcome", prevOutcome)));
+      prevOutcomeContribs.put(prevOutcome, prevOutcomeContrib);
+    }
+    CompiledLinearScorer.add(prevOutcomeContrib, scores);
+    CompiledLinearScorer.add(getCharContrib(0, curChar), scores);
+    if(SentenceDetectorAnnotator.useCharWindow(featConfig)){
+      for(int offset = -WINDOW_SIZE; offset <= WINDOW_SIZE; offset++){
+        if(pos+offset >= 0 && pos+offset < available){
+          CompiledLinearScorer.add(getCharContrib(charFeatureTable.getSlot(offset), charAt(pos+offset)), scores);
+        }
+      }
+    }
+
+    // the token features only change when the next token does
+    Token nextToken = tokens.peekFirst();
+    if(cachedTokenContrib == null || nextToken != cachedToken){
+      String prev = prevToken == null ? firstChar : prevToken.text;
+      String prevDotless = prevToken == null ? SegmentTokenIndex.dotless(firstChar) : prevToken.dotless;
+      String next = nextToken == null ? "" : nextToken.text;
+      String nextLower = nextToken == null ? "" : nextToken.lower;
+      cachedTokenContrib = scorer.compile(SentenceDetectorAnnotator.getTokenFeatures(featConfig, tokenCounts,
+          prev, prevDotless, next, nextLower, "Token"));
+      cachedToken = nextToken;
+    }
+    CompiledLinearScorer.add(cachedTokenContrib, scores);
+    return scorer.decide(scores);
+  }
+
+  private double[] getCharContrib(int slot, char ch) throws CleartkProcessingException {
+    if(ch >= LATIN1_SIZE){
+      return scorer.compile(Arrays.asList(charFeatureTable.get(ch, slot)));
+    }
+    if(charContribs[slot][ch] == null){
+      charContribs[slot][ch] = scorer.compile(Arrays.asList(charFeatureTable.get(ch, slot)));
+    }
+    return charContribs[slot][ch];
+  }
+
+  private static class Token {
+    final String text;
+    final String lower;
+    final String dotless;
+    long end;
+
+    Token(String text){
+      this.text = text;
+      this.lower = text.toLowerCase();
+      this.dotless = SegmentTokenIndex.dotless(text);
+    }
+  }
+}
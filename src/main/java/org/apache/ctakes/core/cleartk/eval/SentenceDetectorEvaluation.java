@@ -1,6 +1,7 @@
 package org.apache.ctakes.core.cleartk.eval;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -8,9 +9,15 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.ctakes.core.ae.SentenceDetector;
 import org.apache.ctakes.core.cleartk.ae.AnaforaSentenceXmlReader;
+import org.apache.ctakes.core.cleartk.ae.BoundaryCandidates;
 import org.apache.ctakes.core.cleartk.ae.SentenceDetectorAnnotator;
 import org.apache.ctakes.core.cleartk.ae.WsjSentenceReader;
 import org.apache.ctakes.rnn.RnnSentenceDetector;
@@ -18,6 +25,7 @@ import org.apache.ctakes.typesystem.type.textspan.Segment;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.uima.analysis_engine.AnalysisEngine;
 import org.apache.uima.analysis_engine.AnalysisEngineDescription;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
 import org.apache.uima.cas.CAS;
@@ -72,6 +80,18 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
     
     @Option(shortName = "f")
     public FEATURE_TYPE getFeatureType();    
+    
+    @Option(shortName = "s")
+    public boolean getCompiledScorer();
+    
+    @Option(shortName = "k", description="Use the candidate filter, and also test without it to report its speedup")
+    public boolean getCandidateFilter();
+    
+    @Option(shortName = "q", description="With -f RNN, also test with int8 weights and compare")
+    public boolean getQuantizedRnn();
+    
+    @Option(shortName = "w", defaultValue={"1"}, description="Number of cross-validation folds to run at once")
+    public int getWorkers();
   }
   
   public static final String GOLD_VIEW_NAME = "GoldView";
@@ -98,6 +118,9 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
     
     eval.evalType = options.getFeatureType();
     eval.corpus = options.getCorpus();
+    eval.compiledScorer = options.getCompiledScorer();
+    eval.candidateFilter = options.getCandidateFilter();
+    eval.quantizedRnn = options.getQuantizedRnn() && eval.evalType == FEATURE_TYPE.RNN;
     
     logger.setLevel(Level.INFO);
     if(eval.evalType == FEATURE_TYPE.BASELINE) logger.setLevel(Level.INFO);
@@ -105,7 +128,7 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
     double p,r,f;
     int tp=0, precDenom=0, recDenom=0;
     if(testItems == null){
-      List<AnnotationStatistics<String>> stats = eval.crossValidation(trainItems, 5);
+      List<AnnotationStatistics<String>> stats = eval.crossValidation(trainItems, 5, options.getWorkers());
       for(AnnotationStatistics<String> stat : stats){
         //      System.out.println("Fold: " );
         System.out.println(stat);
@@ -125,6 +148,13 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
     f = 2 * p * r / (p + r);
     System.out.println("There are " + recDenom + " gold sentences in this corpus.");
     System.out.println(String.format("Overall performance\nP\tR\tF\n%.3f\t%.3f\t%.3f", p, r, f));
+    if(eval.quantizedRnn){
+      System.out.println("With int8 RNN weights:");
+      System.out.println(eval.getQuantizedReport());
+    }
+    if(eval.comparesCandidateFilter()){
+      System.out.println(eval.getCandidateFilterReport());
+    }
     logger.setLevel(Level.WARN);
     
     if(options.getBuildModel()){
@@ -134,11 +164,70 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
 
   FEATURE_TYPE evalType = FEATURE_TYPE.BASELINE;
   CORPUS corpus = CORPUS.MIMIC;
+  boolean compiledScorer = false;
+  boolean candidateFilter = false;
+  boolean quantizedRnn = false;
+  // totals over every call to test() of the float and int8 RNN systems, when comparing them
+  private AnnotationStatistics<String> floatRnnStats = new AnnotationStatistics<>();
+  private AnnotationStatistics<String> quantizedRnnStats = new AnnotationStatistics<>();
+  private long floatRnnNanos = 0;
+  private long quantizedRnnNanos = 0;
+  private long rnnChars = 0;
+  private File rnnModelFile = null;
+  // the same for the annotator with and without the candidate filter
+  private AnnotationStatistics<String> filteredStats = new AnnotationStatistics<>();
+  private AnnotationStatistics<String> unfilteredStats = new AnnotationStatistics<>();
+  private long filteredNanos = 0;
+  private long unfilteredNanos = 0;
+  private long filterChars = 0;
   
   public SentenceDetectorEvaluation(File baseDirectory) {
     super(baseDirectory);
   }
 
+  /**
+   * Like crossValidation(items, numFolds), but with up to numWorkers folds trained and tested at once. Each fold
+   * has the same items and its own fold-N directory as in the sequential run, and the statistics are returned in
+   * fold order, so the results are the same.
+   */
+  public List<AnnotationStatistics<String>> crossValidation(final List<File> items, final int numFolds, int numWorkers) throws Exception {
+    if(numWorkers <= 1){
+      return crossValidation(items, numFolds);
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(numWorkers, numFolds));
+    try{
+      List<Future<AnnotationStatistics<String>>> folds = new ArrayList<>();
+      for(int fold = 0; fold < numFolds; fold++){
+        final int foldNum = fold;
+        folds.add(pool.submit(new Callable<AnnotationStatistics<String>>(){
+          @Override
+          public AnnotationStatistics<String> call() throws Exception {
+            List<File> trainItems = selectFoldTrainItems(items, numFolds, foldNum);
+            List<File> testItems = selectFoldTestItems(items, numFolds, foldNum);
+            File directory = new File(baseDirectory, "fold-" + foldNum);
+            directory.mkdirs();
+            train(getCollectionReader(trainItems), directory);
+            return test(getCollectionReader(testItems), directory);
+          }
+        }));
+      }
+      List<AnnotationStatistics<String>> stats = new ArrayList<>();
+      for(Future<AnnotationStatistics<String>> fold : folds){
+        try{
+          stats.add(fold.get());
+        }catch(ExecutionException e){
+          if(e.getCause() instanceof Exception){
+            throw (Exception) e.getCause();
+          }
+          throw e;
+        }
+      }
+      return stats;
+    }finally{
+      pool.shutdownNow();
+    }
+  }
+
   @Override
   protected CollectionReader getCollectionReader(List<File> items)
       throws Exception {
@@ -175,6 +264,7 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
     
 //    HideOutput hider = new HideOutput();
     JarClassifierBuilder.trainAndPackage(directory, new String[]{"-s", "2", "-c", "1.0"});
+    BoundaryCandidates.addToModelJar(directory);
 //    hider.restoreOutput();
   }
 
@@ -225,18 +315,36 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
       aggregateBuilder.add(WsjSentenceReader.getDescription(), CAS.NAME_DEFAULT_SOFA, GOLD_VIEW_NAME);
     }
     aggregateBuilder.add(CopyFromGold.getDescription(Segment.class));
+    
+    // the system runs separately from the reading so that it can be timed on its own
+    AggregateBuilder systemBuilder = new AggregateBuilder();
+    File modelFile = null;
     if(evalType == FEATURE_TYPE.BASELINE){
-      aggregateBuilder.add(SentenceDetector.createAnnotatorDescription());
+      systemBuilder.add(SentenceDetector.createAnnotatorDescription());
       Logger.getLogger(SentenceDetector.class).setLevel(Level.WARN);
     }else if(evalType == FEATURE_TYPE.RNN){
-      aggregateBuilder.add(RnnSentenceDetector.getDescription(directory.getAbsolutePath() + File.separator + "model.jar"));
+      AnalysisEngineDescription aed = getRnnDescription(directory, false);
+      modelFile = getModelFile(aed);
+      systemBuilder.add(aed);
     }else{
-      AnalysisEngineDescription aed =  SentenceDetectorAnnotator.getDescription(directory.getAbsolutePath() + File.separator + "model.jar");
-      addParameter(aed);
-      aggregateBuilder.add(aed);
+      systemBuilder.add(getAnnotatorDescription(directory, candidateFilter));
       Logger.getLogger(SentenceDetectorAnnotator.class).setLevel(Level.INFO);
     }
-    aggregateBuilder.add(AnalysisEngineFactory.createEngineDescription(SentenceBoundaryAdjuster.class));
+    systemBuilder.add(AnalysisEngineFactory.createEngineDescription(SentenceBoundaryAdjuster.class));
+    AnalysisEngine systemEngine = systemBuilder.createAggregate();
+    
+    // the same detector with int8 weights, run over each document after the float one
+    AnalysisEngine quantizedEngine = null;
+    if(quantizedRnn){
+      quantizedEngine = AnalysisEngineFactory.createEngine(AnalysisEngineFactory.createEngineDescription(getRnnDescription(directory, true),
+          AnalysisEngineFactory.createEngineDescription(SentenceBoundaryAdjuster.class)));
+    }
+    // the same annotator without the candidate filter, to time the filter against
+    AnalysisEngine unfilteredEngine = null;
+    if(comparesCandidateFilter()){
+      unfilteredEngine = AnalysisEngineFactory.createEngine(AnalysisEngineFactory.createEngineDescription(getAnnotatorDescription(directory, false),
+          AnalysisEngineFactory.createEngineDescription(SentenceBoundaryAdjuster.class)));
+    }
     
     AnnotationStatistics<String> stats = new AnnotationStatistics<>();
     Ordering<Annotation> bySpans = Ordering.<Integer> natural().lexicographical().onResultOf(
@@ -247,9 +355,20 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
           }
         });
     
+    AnnotationStatistics<String> quantizedStats = new AnnotationStatistics<>();
+    AnnotationStatistics<String> unfilteredStats = new AnnotationStatistics<>();
+    long systemNanos = 0;
+    long quantizedNanos = 0;
+    long unfilteredNanos = 0;
+    long chars = 0;
+    
     long start = System.currentTimeMillis();
     for (Iterator<JCas> casIter = new JCasIterator(collectionReader, aggregateBuilder.createAggregate()); casIter.hasNext();) {
       JCas jCas = casIter.next();
+      long systemStart = System.nanoTime();
+      systemEngine.process(jCas);
+      systemNanos += System.nanoTime() - systemStart;
+      chars += jCas.getDocumentText().length();
       JCas goldView = jCas.getView(GOLD_VIEW_NAME);
       JCas systemView = jCas.getView(CAS.NAME_DEFAULT_SOFA);
 //      this.logger.fine("Errors in : " + ViewUriUtil.getURI(jCas).toString());
@@ -257,6 +376,13 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
       Collection<Sentence> systemSents = JCasUtil.select(systemView, Sentence.class);
       stats.add(goldSents, systemSents);
       
+      if(quantizedEngine != null){
+        quantizedNanos += runComparison(quantizedEngine, jCas, systemView, goldSents, quantizedStats);
+      }
+      if(unfilteredEngine != null){
+        unfilteredNanos += runComparison(unfilteredEngine, jCas, systemView, goldSents, unfilteredStats);
+      }
+      
       Set<Annotation> goldOnly = new TreeSet<Annotation>(bySpans);
       goldOnly.addAll(goldSents);
       for(Annotation systemSent : systemSents){
@@ -305,11 +431,133 @@ public class SentenceDetectorEvaluation extends Evaluation_ImplBase<File, Annota
       }
     }
     long end = System.currentTimeMillis();
+    systemEngine.collectionProcessComplete();
     logger.info("Runtime of test() for this system is: " + (end-start) + "ms");
+    logger.info(String.format("System throughput: %.0f chars/sec", chars / (systemNanos / 1e9)));
+    
+    if(quantizedEngine != null){
+      quantizedEngine.collectionProcessComplete();
+      synchronized(this){
+        floatRnnStats.addAll(stats);
+        quantizedRnnStats.addAll(quantizedStats);
+        floatRnnNanos += systemNanos;
+        quantizedRnnNanos += quantizedNanos;
+        rnnChars += chars;
+        rnnModelFile = modelFile;
+      }
+      logger.info(getQuantizedReport(modelFile, stats, quantizedStats, chars, systemNanos, quantizedNanos));
+    }
+    if(unfilteredEngine != null){
+      unfilteredEngine.collectionProcessComplete();
+      synchronized(this){
+        filteredStats.addAll(stats);
+        this.unfilteredStats.addAll(unfilteredStats);
+        filteredNanos += systemNanos;
+        this.unfilteredNanos += unfilteredNanos;
+        filterChars += chars;
+      }
+      logger.info(getCandidateFilterReport(stats, unfilteredStats, chars, systemNanos, unfilteredNanos));
+    }
     
     return stats;
   }
+  
+  // Run a second system over a document the main one has annotated, and score and time it. The main system's
+  // sentences are put back afterwards, since the error listing is for it.
+  private static long runComparison(AnalysisEngine engine, JCas jCas, JCas systemView, Collection<Sentence> goldSents,
+      AnnotationStatistics<String> stats) throws AnalysisEngineProcessException {
+    List<Sentence> systemSents = Lists.newArrayList(JCasUtil.select(systemView, Sentence.class));
+    for(Sentence sent : systemSents){
+      sent.removeFromIndexes();
+    }
+    long start = System.nanoTime();
+    engine.process(jCas);
+    long nanos = System.nanoTime() - start;
+    stats.add(goldSents, JCasUtil.select(systemView, Sentence.class));
+    for(Sentence sent : Lists.newArrayList(JCasUtil.select(systemView, Sentence.class))){
+      sent.removeFromIndexes();
+    }
+    for(Sentence sent : systemSents){
+      sent.addToIndexes();
+    }
+    return nanos;
+  }
+  
+  boolean comparesCandidateFilter(){
+    return candidateFilter && evalType != FEATURE_TYPE.BASELINE && evalType != FEATURE_TYPE.RNN;
+  }
+  
+  private AnalysisEngineDescription getAnnotatorDescription(File directory, boolean useCandidateFilter) throws ResourceInitializationException {
+    AnalysisEngineDescription aed =  SentenceDetectorAnnotator.getDescription(directory.getAbsolutePath() + File.separator + "model.jar");
+    addParameter(aed);
+    if(compiledScorer){
+      ConfigurationParameterFactory.addConfigurationParameter(aed,
+          SentenceDetectorAnnotator.PARAM_COMPILED_SCORER,
+          true);
+    }
+    if(useCandidateFilter){
+      ConfigurationParameterFactory.addConfigurationParameter(aed,
+          SentenceDetectorAnnotator.PARAM_CANDIDATE_FILTER,
+          true);
+    }
+    return aed;
+  }
+  
+  synchronized String getCandidateFilterReport(){
+    return getCandidateFilterReport(filteredStats, unfilteredStats, filterChars, filteredNanos, unfilteredNanos);
+  }
+  
+  private static String getCandidateFilterReport(AnnotationStatistics<String> filteredStats, AnnotationStatistics<String> unfilteredStats,
+      long chars, long filteredNanos, long unfilteredNanos){
+    double filteredRate = chars / (filteredNanos / 1e9);
+    double unfilteredRate = chars / (unfilteredNanos / 1e9);
+    return String.format("Candidate filter\n\tP\tR\tF\tchars/sec\n" +
+        "with\t%.3f\t%.3f\t%.3f\t%.0f\nwithout\t%.3f\t%.3f\t%.3f\t%.0f\n" +
+        "F1 delta %+.4f, throughput %.2fx",
+        filteredStats.precision(), filteredStats.recall(), filteredStats.f1(), filteredRate,
+        unfilteredStats.precision(), unfilteredStats.recall(), unfilteredStats.f1(), unfilteredRate,
+        filteredStats.f1() - unfilteredStats.f1(), filteredRate / unfilteredRate);
+  }
 
+  private AnalysisEngineDescription getRnnDescription(File directory, boolean quantize) throws ResourceInitializationException {
+    AnalysisEngineDescription aed = RnnSentenceDetector.getDescription(directory.getAbsolutePath() + File.separator + "model.jar");
+    if(compiledScorer){
+      ConfigurationParameterFactory.addConfigurationParameter(aed, RnnSentenceDetector.PARAM_COMPILED_SCORER, true);
+    }
+    if(quantizedRnn){
+      // float and int8 weights are compared on the same engine
+      ConfigurationParameterFactory.addConfigurationParameter(aed, RnnSentenceDetector.PARAM_JAVA_KERNEL, true);
+    }
+    if(quantize){
+      ConfigurationParameterFactory.addConfigurationParameter(aed, RnnSentenceDetector.PARAM_QUANTIZE, true);
+    }
+    return aed;
+  }
+  
+  // the model file an RnnSentenceDetector description is configured with, which the float and int8 detectors share
+  private static File getModelFile(AnalysisEngineDescription aed){
+    Object value = aed.getAnalysisEngineMetaData().getConfigurationParameterSettings().getParameterValue(RnnSentenceDetector.PARAM_MODEL_FILE);
+    return value instanceof File ? (File) value : new File(String.valueOf(value));
+  }
+  
+  synchronized String getQuantizedReport() throws IOException {
+    return getQuantizedReport(rnnModelFile, floatRnnStats, quantizedRnnStats, rnnChars, floatRnnNanos, quantizedRnnNanos);
+  }
+  
+  private static String getQuantizedReport(File modelFile, AnnotationStatistics<String> floatStats, AnnotationStatistics<String> quantizedStats,
+      long chars, long floatNanos, long quantizedNanos) throws IOException {
+    long floatBytes = RnnSentenceDetector.getKernel(modelFile, false).getWeightBytes();
+    long quantizedBytes = RnnSentenceDetector.getKernel(modelFile, true).getWeightBytes();
+    double floatRate = chars / (floatNanos / 1e9);
+    double quantizedRate = chars / (quantizedNanos / 1e9);
+    return String.format("RNN float vs int8 weights\n\tP\tR\tF\tchars/sec\tweight bytes\n" +
+        "float\t%.3f\t%.3f\t%.3f\t%.0f\t%d\nint8\t%.3f\t%.3f\t%.3f\t%.0f\t%d\n" +
+        "F1 delta %+.4f, throughput %.2fx, weights %.1fx smaller",
+        floatStats.precision(), floatStats.recall(), floatStats.f1(), floatRate, floatBytes,
+        quantizedStats.precision(), quantizedStats.recall(), quantizedStats.f1(), quantizedRate, quantizedBytes,
+        quantizedStats.f1() - floatStats.f1(), quantizedRate / floatRate, (double) floatBytes / quantizedBytes);
+  }
+  
   public static List<File> getAnaforaItems(File anaforaDirectory){
     List<File> textFiles = new ArrayList<>();
     for(File subDir : anaforaDirectory.listFiles()){
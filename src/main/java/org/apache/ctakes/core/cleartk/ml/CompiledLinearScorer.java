@@ -0,0 +1,228 @@
+package org.apache.ctakes.core.cleartk.ml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+import org.apache.ctakes.core.resource.FileLocator;
+import org.cleartk.ml.CleartkProcessingException;
+import org.cleartk.ml.Feature;
+import org.cleartk.ml.encoder.features.FeaturesEncoder;
+import org.cleartk.ml.encoder.outcome.OutcomeEncoder;
+
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+
+/**
+ * A liblinear model from a ClearTK model.jar, flattened so that it can be scored without going
+ * through the ClearTK encoder for every instance.
+ * <p>
+ * The encoder is only consulted when a group of features is compiled into a contribution vector
+ * (one score per liblinear weight vector). Callers cache those vectors for groups of features that
+ * recur (the features of a given character at a given window offset, the features of a token pair,
+ * etc.), so that scoring an instance is just summing a few cached vectors into a score buffer and
+ * calling {@link #decide(double[])}, which picks the outcome the same way liblinear's
+ * <code>Linear.predict</code> does.
+ * <p>
+ * This is only exact as long as no two features of one instance are encoded to the same index: the
+ * ClearTK encoder keeps only one node per index while this class adds up the groups.
+ */
+public class CompiledLinearScorer {
+
+  public static final String ENCODERS_FILE_NAME = "encoders.ser";
+  public static final String MODEL_FILE_NAME = "model.liblinear";
+
+  private final FeaturesEncoder<FeatureNode[]> featuresEncoder;
+  private final double[] weights;
+  private final int numWeightVectors;
+  private final int numFeatures;
+  private final int numClasses;
+  private final String[] outcomes;
+  private final double[] bias;
+
+  public CompiledLinearScorer(FeaturesEncoder<FeatureNode[]> featuresEncoder,
+      OutcomeEncoder<String, Integer> outcomeEncoder, Model model) throws CleartkProcessingException {
+    this.featuresEncoder = featuresEncoder;
+    this.weights = model.getFeatureWeights();
+    this.numFeatures = model.getBias() >= 0 ? model.getNrFeature() + 1 : model.getNrFeature();
+    this.numWeightVectors = this.weights.length / this.numFeatures;
+    this.numClasses = model.getNrClass();
+
+    int[] labels = model.getLabels();
+    this.outcomes = new String[labels.length];
+    for(int i = 0; i < labels.length; i++){
+      this.outcomes[i] = outcomeEncoder.decode(labels[i]);
+    }
+
+    // whatever the encoder adds to every instance (ClearTK adds a bias node) is scored once here:
+    this.bias = this.score(this.featuresEncoder.encodeAll(Collections.<Feature>emptyList()));
+  }
+
+  /**
+   * Get the shared scorer for a model jar, reading it the first time.
+   */
+  public static CompiledLinearScorer getInstance(final String modelPath) throws IOException {
+    return SharedModelRegistry.get("compiledScorer", modelPath, new Callable<CompiledLinearScorer>(){
+      @Override
+      public CompiledLinearScorer call() throws Exception {
+        return fromJar(FileLocator.getAsStream(modelPath));
+      }
+    });
+  }
+
+  /**
+   * Reads the encoders and the liblinear model out of a model.jar written by
+   * <code>JarClassifierBuilder.trainAndPackage</code> with a <code>LibLinearStringOutcomeDataWriter</code>.
+   */
+  @SuppressWarnings("unchecked")
+  public static CompiledLinearScorer fromJar(InputStream jarStream) throws IOException, CleartkProcessingException {
+    FeaturesEncoder<FeatureNode[]> featuresEncoder = null;
+    OutcomeEncoder<String, Integer> outcomeEncoder = null;
+    Model model = null;
+
+    JarInputStream jar = new JarInputStream(jarStream);
+    try{
+      JarEntry entry;
+      while((entry = jar.getNextJarEntry()) != null){
+        // read entries fully before parsing them, liblinear closes the reader it is handed.
+        if(entry.getName().equals(ENCODERS_FILE_NAME)){
+          ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readEntry(jar)));
+          try{
+            featuresEncoder = (FeaturesEncoder<FeatureNode[]>) ois.readObject();
+            outcomeEncoder = (OutcomeEncoder<String, Integer>) ois.readObject();
+          }catch(ClassNotFoundException e){
+            throw new IOException(e);
+          }
+          ois.close();
+        }else if(entry.getName().equals(MODEL_FILE_NAME)){
+          model = Linear.loadModel(new InputStreamReader(new ByteArrayInputStream(readEntry(jar)), "US-ASCII"));
+        }
+      }
+    }finally{
+      jar.close();
+    }
+
+    if(featuresEncoder == null || outcomeEncoder == null || model == null){
+      throw new IOException("Model jar does not contain both " + ENCODERS_FILE_NAME + " and " + MODEL_FILE_NAME);
+    }
+    return new CompiledLinearScorer(featuresEncoder, outcomeEncoder, model);
+  }
+
+  /**
+   * @return The number of scores a score buffer for this model needs to hold.
+   */
+  public int getNumScores(){
+    return this.numWeightVectors;
+  }
+
+  /**
+   * Reset a score buffer to the score of an instance without any features.
+   */
+  public void clear(double[] scores){
+    System.arraycopy(this.bias, 0, scores, 0, this.numWeightVectors);
+  }
+
+  /**
+   * Add a compiled group of features to a score buffer.
+   */
+  public static void add(double[] contribution, double[] scores){
+    for(int i = 0; i < contribution.length; i++){
+      scores[i] += contribution[i];
+    }
+  }
+
+  /**
+   * Compile a group of features into its contribution to the scores. Features the model has never
+   * seen contribute nothing, exactly as in the encoder.
+   */
+  public double[] compile(List<Feature> features) throws CleartkProcessingException {
+    FeatureNode[] nodes;
+    // encoders are not written to be shared between threads
+    synchronized(this.featuresEncoder){
+      nodes = this.featuresEncoder.encodeAll(features);
+    }
+    double[] contribution = this.score(nodes);
+    for(int i = 0; i < contribution.length; i++){
+      contribution[i] -= this.bias[i];
+    }
+    return contribution;
+  }
+
+  /**
+   * Compile a block of numeric features named prefix+0 to prefix+(size-1), like the activations of a network, into
+   * their weights: row i holds the contribution of feature prefix+i with value 1, so that a dense vector of the
+   * feature values can be scored with {@link #addDense(double[], float[], double[])} without naming any features.
+   */
+  public double[] compileDense(String prefix, int size) throws CleartkProcessingException {
+    double[] dense = new double[size * this.numWeightVectors];
+    for(int i = 0; i < size; i++){
+      double[] contribution = compile(Collections.singletonList(new Feature(prefix + i, 1.0)));
+      System.arraycopy(contribution, 0, dense, i * this.numWeightVectors, this.numWeightVectors);
+    }
+    return dense;
+  }
+
+  /**
+   * Add the contribution of a dense block of feature values to a score buffer. NaN values contribute nothing.
+   * @param dense Weights compiled by {@link #compileDense(String, int)} for as many features as there are values.
+   */
+  public static void addDense(double[] dense, float[] values, double[] scores){
+    int numScores = scores.length;
+    for(int i = 0; i < values.length; i++){
+      float value = values[i];
+      if(value == 0f || Float.isNaN(value)) continue;
+      int row = i * numScores;
+      for(int k = 0; k < numScores; k++){
+        scores[k] += dense[row + k] * value;
+      }
+    }
+  }
+
+  /**
+   * Pick the outcome for a filled score buffer, breaking ties the same way liblinear does.
+   */
+  public String decide(double[] scores){
+    if(this.numClasses == 2 && this.numWeightVectors == 1){
+      return scores[0] > 0 ? this.outcomes[0] : this.outcomes[1];
+    }
+    int best = 0;
+    for(int i = 1; i < this.numClasses; i++){
+      if(scores[i] > scores[best]){
+        best = i;
+      }
+    }
+    return this.outcomes[best];
+  }
+
+  private double[] score(FeatureNode[] nodes){
+    double[] scores = new double[this.numWeightVectors];
+    for(FeatureNode node : nodes){
+      // the dimension of testing data may exceed that of training
+      if(node.index <= this.numFeatures){
+        for(int i = 0; i < this.numWeightVectors; i++){
+          scores[i] += this.weights[(node.index - 1) * this.numWeightVectors + i] * node.value;
+        }
+      }
+    }
+    return scores;
+  }
+
+  private static byte[] readEntry(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while((len = in.read(buffer)) != -1){
+      out.write(buffer, 0, len);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,46 @@
+package org.apache.ctakes.core.cleartk.ml;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.apache.uima.UimaContext;
+import org.apache.uima.fit.factory.initializable.Initializable;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.cleartk.ml.Classifier;
+import org.cleartk.ml.ClassifierFactory;
+import org.cleartk.ml.jar.GenericJarClassifierFactory;
+import org.cleartk.util.ReflectionUtil;
+
+/**
+ * A drop-in replacement for {@link GenericJarClassifierFactory} (it reads the same
+ * {@link GenericJarClassifierFactory#PARAM_CLASSIFIER_JAR_PATH} parameter) that loads each model jar once
+ * per JVM through the {@link SharedModelRegistry} and hands the same classifier to every annotator.
+ * <p>
+ * ClearTK classifiers are not written to be called from several threads (their features encoders keep
+ * state), so annotators that may run on different threads must synchronize on the classifier they are
+ * handed, as SentenceDetectorAnnotator and RnnSentenceDetector do.
+ */
+public class SharedJarClassifierFactory<OUTCOME_TYPE> implements ClassifierFactory<OUTCOME_TYPE>, Initializable {
+
+  private UimaContext context = null;
+  private String classifierJarPath = null;
+
+  @Override
+  public void initialize(UimaContext context) throws ResourceInitializationException {
+    this.context = context;
+    this.classifierJarPath = (String) context.getConfigParameterValue(GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH);
+  }
+
+  @Override
+  public Classifier<OUTCOME_TYPE> createClassifier() throws IOException {
+    Classifier<?> classifier = SharedModelRegistry.get("classifier", this.classifierJarPath, new Callable<Classifier<?>>(){
+      @Override
+      public Classifier<?> call() throws Exception {
+        GenericJarClassifierFactory<Object> factory = new GenericJarClassifierFactory<>();
+        factory.initialize(context);
+        return factory.createClassifier();
+      }
+    });
+    return ReflectionUtil.uncheckedCast(classifier);
+  }
+}
@@ -0,0 +1,84 @@
+package org.apache.ctakes.core.cleartk.ml;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide registry of immutable model resources (classifiers, weights, lexicons), keyed by the kind
+ * of resource and the location it was loaded from. When several pipeline threads each initialize their own
+ * annotator, the first one to ask for a resource loads it and the others wait for and reuse that copy, so
+ * memory does not grow with the number of threads.
+ * <p>
+ * Anything put in here is shared between threads, so it must not be modified after it is loaded. Mutable
+ * per-document state belongs in the annotator instances.
+ */
+public class SharedModelRegistry {
+
+  private static final ConcurrentMap<String,Loaded> resources = new ConcurrentHashMap<>();
+
+  /**
+   * Get a shared resource, loading it with the given loader if no other caller has loaded it yet.
+   * If the location is a file that has been rewritten (its modification time or length changed) since
+   * the resource was loaded, the resource is loaded again and the old copy is dropped from the registry.
+   * @param kind What sort of resource this is, so that different resources loaded from the same
+   *  location do not collide.
+   * @param location Where the resource is loaded from.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T get(String kind, String location, Callable<T> loader) throws IOException {
+    String key = kind + ":" + location;
+    String version = version(location);
+    Loaded loaded = resources.get(key);
+    while(loaded == null || !loaded.version.equals(version)){
+      Loaded newLoaded = new Loaded(version, new FutureTask<T>(loader));
+      boolean added = loaded == null ? resources.putIfAbsent(key, newLoaded) == null : resources.replace(key, loaded, newLoaded);
+      if(added){
+        loaded = newLoaded;
+        newLoaded.task.run();
+      }else{
+        loaded = resources.get(key);
+      }
+    }
+    try{
+      return (T) loaded.task.get();
+    }catch(ExecutionException e){
+      // let the next caller try again rather than caching the failure
+      resources.remove(key, loaded);
+      if(e.getCause() instanceof IOException){
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Could not load " + kind + " from " + location, e.getCause());
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + kind + " from " + location, e);
+    }
+  }
+
+  // files are versioned by modification time and length; classpath resources do not change while the JVM runs
+  private static String version(String location){
+    File file = new File(location);
+    return file.isFile() ? file.lastModified() + ":" + file.length() : "";
+  }
+
+  private static class Loaded {
+    private final String version;
+    private final FutureTask<?> task;
+
+    Loaded(String version, FutureTask<?> task){
+      this.version = version;
+      this.task = task;
+    }
+  }
+
+  /**
+   * Forget everything that has been loaded; resources already handed out are unaffected.
+   */
+  public static void clear(){
+    resources.clear();
+  }
+}
@@ -0,0 +1,204 @@
+package org.apache.ctakes.core.cleartk.ml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.apache.ctakes.core.resource.FileLocator;
+
+/**
+ * Read-only token counts stored as a sorted string table with primitive counts in a single buffer, so that
+ * a lookup is a binary search with no allocation.
+ * <p>
+ * The compiled format (version 1, big-endian) is: the magic number, the version, the number of entries n,
+ * n+1 char offsets into the string section, n counts, and then the strings themselves as UTF-16 chars in
+ * {@link String#compareTo(String)} order. Compiled files on the file system are memory-mapped; anything else
+ * (compiled files inside a jar, or the "token : count" text files written by WriteTokenFrequencies) is read
+ * into memory once. Either way there is one lexicon per location per JVM.
+ */
+public class TokenLexicon {
+
+  public static final int MAGIC = 0x544C4558; // "TLEX"
+  public static final int VERSION = 1;
+  public static final String FILE_EXTENSION = ".lex";
+  private static final int HEADER_SIZE = 12;
+
+  private final ByteBuffer buffer;
+  private final int size;
+  private final int countsStart;
+  private final int charsStart;
+
+  /**
+   * @param buffer A buffer holding a compiled lexicon, starting at position 0.
+   */
+  public TokenLexicon(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer.duplicate();
+    if(this.buffer.getInt(0) != MAGIC){
+      throw new IOException("Not a compiled token lexicon");
+    }
+    if(this.buffer.getInt(4) != VERSION){
+      throw new IOException("Unsupported token lexicon version: " + this.buffer.getInt(4));
+    }
+    this.size = this.buffer.getInt(8);
+    this.countsStart = HEADER_SIZE + 4 * (this.size + 1);
+    this.charsStart = this.countsStart + 4 * this.size;
+  }
+
+  /**
+   * Get the shared lexicon for a location, loading it the first time. Locations ending in
+   * {@link #FILE_EXTENSION} are compiled lexicons, anything else is read as a text file of
+   * "token : count" lines.
+   */
+  public static TokenLexicon getInstance(final String location) throws IOException {
+    return SharedModelRegistry.get("tokenLexicon", location, new Callable<TokenLexicon>(){
+      @Override
+      public TokenLexicon call() throws Exception {
+        return load(location);
+      }
+    });
+  }
+
+  private static TokenLexicon load(String location) throws IOException {
+    if(location.endsWith(FILE_EXTENSION)){
+      File file = new File(location);
+      if(file.isFile()){
+        return map(file);
+      }
+      return new TokenLexicon(ByteBuffer.wrap(readAll(FileLocator.getAsStream(location))));
+    }
+    return fromText(FileLocator.getAsStream(location));
+  }
+
+  /**
+   * Memory-map a compiled lexicon read-only.
+   */
+  public static TokenLexicon map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try{
+      // the mapping stays valid after the channel is closed
+      return new TokenLexicon(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+    }finally{
+      raf.close();
+    }
+  }
+
+  /**
+   * Build a lexicon from "token : count" lines.
+   */
+  public static TokenLexicon fromText(InputStream in) throws IOException {
+    return new TokenLexicon(ByteBuffer.wrap(compile(readCounts(in))));
+  }
+
+  /**
+   * Read "token : count" lines. As with the CounterMap this replaces, a token that appears twice keeps
+   * its last count.
+   */
+  public static TreeMap<String,Integer> readCounts(InputStream in){
+    TreeMap<String,Integer> counts = new TreeMap<>();
+    Scanner scanner = new Scanner(in);
+    while(scanner.hasNextLine()){
+      String[] pair = scanner.nextLine().trim().split(" : ");
+      if(pair.length == 2){
+        counts.put(pair[0], Integer.parseInt(pair[1]));
+      }
+    }
+    scanner.close();
+    return counts;
+  }
+
+  /**
+   * Write a compiled lexicon for the given counts.
+   */
+  public static void write(Map<String,Integer> counts, File outputFile) throws IOException {
+    FileOutputStream out = new FileOutputStream(outputFile);
+    try{
+      out.write(compile(counts));
+    }finally{
+      out.close();
+    }
+  }
+
+  private static byte[] compile(Map<String,Integer> counts) throws IOException {
+    Map<String,Integer> sorted = counts instanceof TreeMap ? counts : new TreeMap<>(counts);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(sorted.size());
+    int offset = 0;
+    out.writeInt(offset);
+    for(String token : sorted.keySet()){
+      offset += token.length();
+      out.writeInt(offset);
+    }
+    for(int count : sorted.values()){
+      out.writeInt(count);
+    }
+    for(String token : sorted.keySet()){
+      out.writeChars(token);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public int size(){
+    return this.size;
+  }
+
+  /**
+   * @return The count for the token, or 0 if it is not in the lexicon.
+   */
+  public int get(CharSequence token){
+    int low = 0;
+    int high = this.size - 1;
+    while(low <= high){
+      int mid = (low + high) >>> 1;
+      int cmp = compare(mid, token);
+      if(cmp < 0){
+        low = mid + 1;
+      }else if(cmp > 0){
+        high = mid - 1;
+      }else{
+        return this.buffer.getInt(this.countsStart + 4 * mid);
+      }
+    }
+    return 0;
+  }
+
+  // compare entry i to the token in String.compareTo order without building a String for the entry
+  private int compare(int i, CharSequence token){
+    int begin = this.buffer.getInt(HEADER_SIZE + 4 * i);
+    int end = this.buffer.getInt(HEADER_SIZE + 4 * (i + 1));
+    int len = end - begin;
+    int limit = Math.min(len, token.length());
+    for(int j = 0; j < limit; j++){
+      char c = this.buffer.getChar(this.charsStart + 2 * (begin + j));
+      char t = token.charAt(j);
+      if(c != t){
+        return c - t;
+      }
+    }
+    return len - token.length();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int len;
+    while((len = in.read(buf)) != -1){
+      out.write(buf, 0, len);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
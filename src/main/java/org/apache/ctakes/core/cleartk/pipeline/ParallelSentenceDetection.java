@@ -0,0 +1,241 @@
+package org.apache.ctakes.core.cleartk.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.ctakes.core.ae.SimpleSegmentAnnotator;
+import org.apache.ctakes.core.cleartk.ae.SentenceDetectorAnnotator;
+import org.apache.ctakes.core.cleartk.eval.SentenceDetectorEvaluation;
+import org.apache.ctakes.typesystem.type.textspan.Sentence;
+import org.apache.log4j.Logger;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.fit.factory.AggregateBuilder;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.fit.factory.ConfigurationParameterFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.cleartk.util.ViewUriUtil;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Runs sentence detection over a batch of documents with several pipeline replicas in parallel, each on its
+ * own thread with its own CAS, and writes the sentence offsets of each document to
+ * &lt;output directory&gt;/&lt;document name&gt;.sentences as one tab-separated begin/end pair per line. A document
+ * under the input directory keeps its path relative to it; documents that would still get the same output file
+ * are rejected before anything runs.
+ * <p>
+ * Documents are handed out largest first so that a long document does not start last and hold up the
+ * end of the run. Model resources are shared between the replicas (see SharedModelRegistry), so adding
+ * threads mostly adds per-document state. Each document is a single Segment here, so its characters are
+ * tagged on one thread.
+ */
+public class ParallelSentenceDetection {
+
+  enum INPUT_TYPE {TEXT, ANAFORA, WSJ}
+
+  static interface Options {
+    @Option(shortName = "i", defaultToNull=true)
+    public File getInputDirectory();
+
+    @Option(shortName = "l", defaultToNull=true)
+    public File getFileList();
+
+    @Option(shortName = "c", defaultValue={"TEXT"})
+    public INPUT_TYPE getInputType();
+
+    @Option(shortName = "o")
+    public File getOutputDirectory();
+
+    @Option(shortName = "t", defaultValue={"0"})
+    public int getThreads();
+
+    @Option(shortName = "m", defaultValue={GenerateDescriptors.sentModelPath})
+    public String getModel();
+
+    @Option(shortName = "f", defaultValue={"CHAR"})
+    public SentenceDetectorAnnotator.FEAT_CONFIG getFeatureConfig();
+
+    @Option(shortName = "s")
+    public boolean getCompiledScorer();
+
+    @Option(shortName = "k")
+    public boolean getCandidateFilter();
+  }
+
+  public static Logger logger = Logger.getLogger(ParallelSentenceDetection.class);
+
+  public static void main(String[] args) throws Exception {
+    Options options = CliFactory.parseArguments(Options.class, args);
+    List<File> items = getItems(options);
+    int numThreads = options.getThreads() > 0 ? options.getThreads() : Runtime.getRuntime().availableProcessors();
+    options.getOutputDirectory().mkdirs();
+
+    // largest documents first, so the work left at the end is in small pieces
+    Collections.sort(items, new Comparator<File>(){
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.compare(f2.length(), f1.length());
+      }
+    });
+    Queue<File> queue = new ConcurrentLinkedQueue<>(items);
+    Map<File,File> outputs = getOutputs(items, options.getInputDirectory(), options.getOutputDirectory());
+
+    AnalysisEngineDescription aed = getDescription(options);
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    List<Future<WorkerStats>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for(int i = 0; i < numThreads; i++){
+      futures.add(pool.submit(new Worker(aed, queue, outputs)));
+    }
+    pool.shutdown();
+
+    int docs = 0;
+    long chars = 0;
+    for(int i = 0; i < futures.size(); i++){
+      WorkerStats stats = futures.get(i).get();
+      System.out.println(String.format("Thread %d: %d docs, %d chars, %.2f docs/sec, %.0f chars/sec",
+          i, stats.docs, stats.chars, stats.docs / (stats.nanos / 1e9), stats.chars / (stats.nanos / 1e9)));
+      docs += stats.docs;
+      chars += stats.chars;
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("Overall with %d threads: %d docs, %d chars in %.1f s, %.2f docs/sec, %.0f chars/sec",
+        numThreads, docs, chars, seconds, docs / seconds, chars / seconds));
+  }
+
+  private static List<File> getItems(Options options) throws IOException {
+    List<File> items = new ArrayList<>();
+    if(options.getFileList() != null){
+      Scanner scanner = new Scanner(options.getFileList());
+      while(scanner.hasNextLine()){
+        String line = scanner.nextLine().trim();
+        if(line.length() > 0) items.add(new File(line));
+      }
+      scanner.close();
+    }else if(options.getInputDirectory() == null){
+      throw new IllegalArgumentException("One of --inputDirectory or --fileList is required");
+    }else if(options.getInputType() == INPUT_TYPE.ANAFORA){
+      items = SentenceDetectorEvaluation.getAnaforaItems(options.getInputDirectory());
+    }else if(options.getInputType() == INPUT_TYPE.WSJ){
+      items = SentenceDetectorEvaluation.getWsjItems(options.getInputDirectory());
+    }else{
+      for(File file : options.getInputDirectory().listFiles()){
+        if(file.isFile() && !file.isHidden()) items.add(file);
+      }
+    }
+    return items;
+  }
+
+  // the .sentences file of each document, mirroring its path under the input directory if it is in it
+  private static Map<File,File> getOutputs(List<File> items, File inputDirectory, File outputDirectory) throws IOException {
+    Path inputPath = inputDirectory == null ? null : inputDirectory.toPath().toAbsolutePath().normalize();
+    Map<File,File> outputs = new HashMap<>();
+    Map<File,File> sources = new HashMap<>();
+    for(File file : items){
+      Path path = file.toPath().toAbsolutePath().normalize();
+      String name = inputPath != null && path.startsWith(inputPath) ? inputPath.relativize(path).toString() : file.getName();
+      File output = new File(outputDirectory, name + ".sentences");
+      File previous = sources.put(output, file);
+      if(previous != null){
+        throw new IOException(String.format("%s and %s would both be written to %s", previous, file, output));
+      }
+      outputs.put(file, output);
+    }
+    return outputs;
+  }
+
+  private static AnalysisEngineDescription getDescription(Options options) throws Exception {
+    AnalysisEngineDescription aed = SentenceDetectorAnnotator.getDescription(options.getModel());
+    ConfigurationParameterFactory.addConfigurationParameter(aed,
+        SentenceDetectorAnnotator.PARAM_FEAT_CONFIG,
+        options.getFeatureConfig());
+    ConfigurationParameterFactory.addConfigurationParameter(aed,
+        SentenceDetectorAnnotator.PARAM_COMPILED_SCORER,
+        options.getCompiledScorer());
+    ConfigurationParameterFactory.addConfigurationParameter(aed,
+        SentenceDetectorAnnotator.PARAM_CANDIDATE_FILTER,
+        options.getCandidateFilter());
+
+    AggregateBuilder aggregateBuilder = new AggregateBuilder();
+    aggregateBuilder.add(SimpleSegmentAnnotator.createAnnotatorDescription());
+    aggregateBuilder.add(aed);
+    return aggregateBuilder.createAggregateDescription();
+  }
+
+  static class WorkerStats {
+    int docs = 0;
+    long chars = 0;
+    long nanos = 0;
+  }
+
+  /**
+   * One pipeline replica: pulls documents off the shared queue until it is empty, reusing its CAS.
+   */
+  static class Worker implements Callable<WorkerStats> {
+    private AnalysisEngineDescription aed;
+    private Queue<File> queue;
+    private Map<File,File> outputs;
+
+    public Worker(AnalysisEngineDescription aed, Queue<File> queue, Map<File,File> outputs){
+      this.aed = aed;
+      this.queue = queue;
+      this.outputs = outputs;
+    }
+
+    @Override
+    public WorkerStats call() throws Exception {
+      WorkerStats stats = new WorkerStats();
+      AnalysisEngine engine = AnalysisEngineFactory.createEngine(aed);
+      JCas jcas = engine.newJCas();
+      try{
+        File file;
+        while((file = queue.poll()) != null){
+          long start = System.nanoTime();
+          jcas.reset();
+          String text = FileUtils.readFileToString(file);
+          jcas.setDocumentText(text);
+          ViewUriUtil.setURI(jcas, file.toURI());
+          engine.process(jcas);
+
+          File output = outputs.get(file);
+          output.getParentFile().mkdirs();
+          PrintWriter out = new PrintWriter(output);
+          for(Sentence sent : JCasUtil.select(jcas, Sentence.class)){
+            out.print(String.format("%d\t%d\n", sent.getBegin(), sent.getEnd()));
+          }
+          out.close();
+
+          stats.nanos += System.nanoTime() - start;
+          stats.docs++;
+          stats.chars += text.length();
+        }
+        engine.collectionProcessComplete();
+      }catch(Exception e){
+        logger.error("Pipeline replica failed", e);
+        throw e;
+      }finally{
+        engine.destroy();
+      }
+      return stats;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.apache.ctakes.core.cleartk.train;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Scanner;
+
+import org.apache.ctakes.core.cleartk.ml.TokenLexicon;
+import org.apache.ctakes.utils.struct.CounterMap;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Converts a token count file written by WriteTokenFrequencies into the compiled {@link TokenLexicon}
+ * format, then compares loading it against parsing the text file into a CounterMap the way
+ * SentenceDetectorAnnotator used to.
+ */
+public class CompileTokenLexicon {
+  static interface Options {
+    @Option
+    public File getInputFile();
+
+    @Option
+    public File getOutputFile();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = CliFactory.parseArguments(Options.class, args);
+
+    Map<String,Integer> counts = TokenLexicon.readCounts(new FileInputStream(options.getInputFile()));
+    TokenLexicon.write(counts, options.getOutputFile());
+    System.out.println(String.format("Wrote %d tokens to %s (%d bytes, text file was %d bytes)", counts.size(),
+        options.getOutputFile(), options.getOutputFile().length(), options.getInputFile().length()));
+    counts = null;
+
+    long heapBefore = usedHeap();
+    long start = System.nanoTime();
+    CounterMap<String> tokenCounts = new CounterMap<>();
+    Scanner scanner = new Scanner(new FileInputStream(options.getInputFile()));
+    while(scanner.hasNextLine()){
+      String[] pair = scanner.nextLine().trim().split(" : ");
+      if(pair.length == 2){
+        tokenCounts.put(pair[0], Integer.parseInt(pair[1]));
+      }
+    }
+    scanner.close();
+    long textNanos = System.nanoTime() - start;
+    long textHeap = usedHeap() - heapBefore;
+
+    heapBefore = usedHeap();
+    start = System.nanoTime();
+    TokenLexicon lexicon = TokenLexicon.map(options.getOutputFile());
+    long lexiconNanos = System.nanoTime() - start;
+    long lexiconHeap = usedHeap() - heapBefore;
+
+    // make sure both are still reachable when the heap was measured, and that they agree
+    for(String token : tokenCounts.keySet()){
+      if(lexicon.get(token) != tokenCounts.get(token)){
+        throw new IllegalStateException("Compiled lexicon disagrees with the text file on token: " + token);
+      }
+    }
+    System.out.println(String.format("Text file into CounterMap: %.1f ms, %d KB heap", textNanos / 1e6, textHeap / 1024));
+    System.out.println(String.format("Mapped compiled lexicon:   %.1f ms, %d KB heap (file is off heap)", lexiconNanos / 1e6, lexiconHeap / 1024));
+  }
+
+  private static long usedHeap(){
+    Runtime runtime = Runtime.getRuntime();
+    for(int i = 0; i < 3; i++){
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,138 @@
+package org.apache.ctakes.rnn;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The characters a character network reads and predicts, in input index order. Lookups go through a dense table
+ * indexed by the char itself, so they neither box nor allocate. Characters outside the vocabulary get the
+ * out-of-vocabulary index if there is one, and {@link #NOT_FOUND} otherwise.
+ * <p>
+ * The vocabulary is saved in the model file (see RnnModelFile), so inference reads characters exactly the way
+ * training did, and a network whose size does not match its vocabulary is rejected when it is loaded.
+ */
+public class CharVocabulary {
+  public static final int NOT_FOUND = -1;
+
+  private final char[] chars;
+  // input index of every char up to the largest one in the vocabulary, NOT_FOUND for the rest
+  private final int[] table;
+  private final int oovIndex;
+
+  /**
+   * A vocabulary without an out-of-vocabulary index.
+   */
+  public CharVocabulary(char[] chars){
+    this(chars, NOT_FOUND);
+  }
+
+  /**
+   * @param oovIndex The index to give characters outside the vocabulary, or NOT_FOUND.
+   */
+  public CharVocabulary(char[] chars, int oovIndex){
+    if(oovIndex < NOT_FOUND || oovIndex >= chars.length){
+      throw new IllegalArgumentException("Out-of-vocabulary index " + oovIndex + " is not in the vocabulary");
+    }
+    this.chars = chars.clone();
+    this.oovIndex = oovIndex;
+    char max = 0;
+    for(char c : chars){
+      max = (char) Math.max(max, c);
+    }
+    this.table = new int[max + 1];
+    Arrays.fill(this.table, NOT_FOUND);
+    for(int i = 0; i < chars.length; i++){
+      if(this.table[chars[i]] != NOT_FOUND){
+        throw new IllegalArgumentException("Character " + (int) chars[i] + " is in the vocabulary twice");
+      }
+      this.table[chars[i]] = i;
+    }
+  }
+
+  /**
+   * @return The same vocabulary, with characters outside it read as the given one.
+   */
+  public CharVocabulary withOov(char oovChar){
+    if(!contains(oovChar)){
+      throw new IllegalArgumentException("Character " + (int) oovChar + " is not in the vocabulary");
+    }
+    return new CharVocabulary(this.chars, this.table[oovChar]);
+  }
+
+  public int size(){
+    return this.chars.length;
+  }
+
+  public boolean contains(char c){
+    return c < this.table.length && this.table[c] != NOT_FOUND;
+  }
+
+  /**
+   * @return The input index of the character, or the out-of-vocabulary index if it is not in the vocabulary.
+   */
+  public int indexOf(char c){
+    int index = c < this.table.length ? this.table[c] : NOT_FOUND;
+    return index == NOT_FOUND ? this.oovIndex : index;
+  }
+
+  public char getChar(int index){
+    return this.chars[index];
+  }
+
+  /**
+   * @return The out-of-vocabulary index, or NOT_FOUND if characters outside the vocabulary have none.
+   */
+  public int getOovIndex(){
+    return this.oovIndex;
+  }
+
+  /**
+   * @return A copy of the characters in index order.
+   */
+  public char[] getChars(){
+    return this.chars.clone();
+  }
+
+  /**
+   * @return The number of bytes {@link #writeTo(ByteBuffer)} takes.
+   */
+  int getEncodedSize(){
+    return 8 + 2 * this.chars.length;
+  }
+
+  // the size, the out-of-vocabulary index, then each char, in the buffer's byte order
+  void writeTo(ByteBuffer buffer){
+    buffer.putInt(this.chars.length).putInt(this.oovIndex);
+    for(char c : this.chars){
+      buffer.putChar(c);
+    }
+  }
+
+  static CharVocabulary readFrom(ByteBuffer buffer){
+    int size = buffer.getInt();
+    int oovIndex = buffer.getInt();
+    if(size < 0 || buffer.remaining() < 2L * size){
+      throw new BufferUnderflowException();
+    }
+    char[] chars = new char[size];
+    for(int i = 0; i < size; i++){
+      chars[i] = buffer.getChar();
+    }
+    return new CharVocabulary(chars, oovIndex);
+  }
+
+  @Override
+  public boolean equals(Object other){
+    if(!(other instanceof CharVocabulary)){
+      return false;
+    }
+    CharVocabulary vocabulary = (CharVocabulary) other;
+    return Arrays.equals(this.chars, vocabulary.chars) && this.oovIndex == vocabulary.oovIndex;
+  }
+
+  @Override
+  public int hashCode(){
+    return 31 * Arrays.hashCode(this.chars) + this.oovIndex;
+  }
+}
@@ -5,18 +5,13 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
-import org.deeplearning4j.datasets.iterator.DataSetIterator;
-import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.factory.Nd4j;
 
 /** A very simple DataSetIterator for use in the GravesLSTMCharModellingExample.
  * Given a text file and a few options, generate feature vectors and labels for training,
@@ -27,11 +22,11 @@ import org.nd4j.linalg.factory.Nd4j;
  * Feature vectors and labels are both one-hot vectors of same length
  * @author Alex Black
  */
-public class CharacterIterator implements DataSetIterator {
+public class CharacterIterator implements RandomBatchIterator {
   private static final long serialVersionUID = -7287833919126626356L;
   private static final int MAX_SCAN_LENGTH = 200; 
   private char[] validCharacters;
-  private Map<Character,Integer> charToIdxMap;
+  private CharVocabulary vocabulary;
   private char[] fileCharacters;
   private int exampleLength;
   private int miniBatchSize;
@@ -69,13 +64,11 @@ public class CharacterIterator implements DataSetIterator {
     this.rng = rng;
     this.alwaysStartAtNewLine = alwaysStartAtNewLine;
     
-    //Store valid characters is a map for later use in vectorization
-    charToIdxMap = new HashMap<>();
-    for( int i=0; i<validCharacters.length; i++ ) charToIdxMap.put(validCharacters[i], i);
+    vocabulary = new CharVocabulary(validCharacters);
     numCharacters = validCharacters.length;
     
     //Load file and convert contents to a char[] 
-    boolean newLineValid = charToIdxMap.containsKey('\n');
+    boolean newLineValid = vocabulary.contains('\n');
     List<String> lines = Files.readAllLines(new File(textFilePath).toPath(),textFileEncoding);
     int maxSize = lines.size(); //add lines.size() to account for newline characters at end of each line 
     for( String s : lines ) maxSize += s.length();
@@ -84,7 +77,7 @@ public class CharacterIterator implements DataSetIterator {
     for( String s : lines ){
       char[] thisLine = s.toCharArray();
       for( int i=0; i<thisLine.length; i++ ){
-        if( !charToIdxMap.containsKey(thisLine[i]) ) continue;
+        if( !vocabulary.contains(thisLine[i]) ) continue;
         characters[currIdx++] = thisLine[i];
       }
       if(newLineValid) characters[currIdx++] = '\n';
@@ -135,7 +128,11 @@ public class CharacterIterator implements DataSetIterator {
   }
   
   public int convertCharacterToIndex( char c ){
-    return charToIdxMap.get(c);
+    return vocabulary.indexOf(c);
+  }
+  
+  public CharVocabulary getVocabulary(){
+    return vocabulary;
   }
   
   public char getRandomCharacter(){
@@ -152,9 +149,15 @@ public class CharacterIterator implements DataSetIterator {
 
   public DataSet next(int num) {
     if( examplesSoFar+num > numExamplesToFetch ) throw new NoSuchElementException();
+    DataSet next = next(num, rng);
+    examplesSoFar += num;
+    return next;
+  }
+
+  public DataSet next(int num, Random rng) {
     //Allocate space:
-    INDArray input = Nd4j.zeros(new int[]{num,numCharacters,exampleLength});
-    INDArray labels = Nd4j.zeros(new int[]{num,numCharacters,exampleLength});
+    OneHotVectorizer vectorizer = new OneHotVectorizer(numCharacters, exampleLength);
+    vectorizer.start(num);
     
     int maxStartIdx = fileCharacters.length - exampleLength;
     
@@ -171,18 +174,20 @@ public class CharacterIterator implements DataSetIterator {
         }
       }
       
-      int currCharIdx = charToIdxMap.get(fileCharacters[startIdx]); //Current input
+      int currCharIdx = vocabulary.indexOf(fileCharacters[startIdx]); //Current input
       int c=0;
       for( int j=startIdx+1; j<=endIdx; j++, c++ ){
-        int nextCharIdx = charToIdxMap.get(fileCharacters[j]);    //Next character to predict
-        input.putScalar(new int[]{i,currCharIdx,c}, 1.0);
-        labels.putScalar(new int[]{i,nextCharIdx,c}, 1.0);
+        int nextCharIdx = vocabulary.indexOf(fileCharacters[j]);    //Next character to predict
+        vectorizer.set(i, c, currCharIdx, nextCharIdx);
         currCharIdx = nextCharIdx;
       }
     }
     
-    examplesSoFar += num;
-    return new DataSet(input,labels);
+    return vectorizer.finish();
+  }
+
+  public int numBatches() {
+    return numExamplesToFetch / miniBatchSize;
   }
 
   public int totalExamples() {
@@ -1,13 +1,11 @@
 package org.apache.ctakes.rnn;
 
-import java.util.Map;
 import java.util.Random;
 
-import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
 
-public abstract class CharacterIterator_ImplBase implements DataSetIterator {
+public abstract class CharacterIterator_ImplBase implements RandomBatchIterator {
 
   public static final int MINI_BATCH_SIZE = 50;
   public static final int EXAMPLE_SIZE = 100;
@@ -15,10 +13,19 @@ public abstract class CharacterIterator_ImplBase implements DataSetIterator {
   protected int maxChars = -1;  // the shakespeare corpus is roughly 6 million chars according to wc -c
   protected char[] validChars = null;
   protected int numCharacters = 0;
-  protected Map<Character,Integer> charToIdxMap = null;
+  protected CharVocabulary vocabulary = null;
 
   @Override
-  public abstract DataSet next(int num);
+  public DataSet next(int num){
+    DataSet next = next(num, getRandom());
+    charNum += num;
+    return next;
+  }
+
+  /**
+   * @return The Random that next() draws minibatches from.
+   */
+  protected abstract Random getRandom();
 
   public abstract char[] getCharacterSet();
   
@@ -32,6 +39,12 @@ public abstract class CharacterIterator_ImplBase implements DataSetIterator {
     return next(MINI_BATCH_SIZE);
   }
 
+  @Override
+  public int numBatches() {
+    // the number of times hasNext() is true from a reset
+    return Math.max(0, (maxChars - 1) / MINI_BATCH_SIZE);
+  }
+
   @Override
   public int batch() {
     return MINI_BATCH_SIZE; // copied from RNN example
@@ -72,8 +85,12 @@ public abstract class CharacterIterator_ImplBase implements DataSetIterator {
     return this.validChars.length;
   }
 
+  public CharVocabulary getVocabulary(){
+    return this.vocabulary != null ? this.vocabulary : new CharVocabulary(getCharacterSet());
+  }
+  
   public int getCharIndex(char c){
-    return charToIdxMap.get(c);
+    return vocabulary.indexOf(c);
   }
   
   public char getIndexChar(int i){
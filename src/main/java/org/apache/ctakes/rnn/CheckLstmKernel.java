@@ -0,0 +1,107 @@
+package org.apache.ctakes.rnn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.nn.layers.recurrent.BaseRecurrentLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Checks that {@link LstmKernel} computes the same network output and memory cells as stepping the ND4J network
+ * with rnnTimeStep one character at a time (the way RnnSentenceDetector used to), and compares their speed.
+ * Exits with an error if any value differs by more than the tolerance.
+ */
+public class CheckLstmKernel {
+  static interface Options {
+    @Option
+    public File getModelFile();
+
+    @Option(defaultToNull=true, description="Text to run through both; random characters if not given")
+    public File getTextFile();
+
+    @Option(defaultValue={"5000"})
+    public int getNumChars();
+
+    @Option(defaultValue={"1e-4"})
+    public double getTolerance();
+  }
+
+  public static void main(String[] args) throws IOException, ClassNotFoundException {
+    Options options = CliFactory.parseArguments(Options.class, args);
+    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(options.getModelFile()));
+    MultiLayerNetwork rnn = (MultiLayerNetwork) ois.readObject();
+    ois.close();
+    LstmKernel kernel = LstmKernel.fromNetwork(rnn);
+
+    CharVocabulary vocabulary = new LuceneReaderCharacterIterator().getVocabulary().withOov(' ');
+
+    int[] charIndices = new int[options.getNumChars()];
+    if(options.getTextFile() != null){
+      String text = FileUtils.readFileToString(options.getTextFile());
+      for(int i = 0; i < charIndices.length; i++){
+        charIndices[i] = vocabulary.indexOf(text.charAt(i % text.length()));
+      }
+    }else{
+      Random random = new Random(12345);
+      for(int i = 0; i < charIndices.length; i++){
+        charIndices[i] = random.nextInt(vocabulary.size());
+      }
+    }
+
+    // ND4J one step at a time
+    int memoryLayer = 1;
+    float[][] nd4jOutputs = new float[charIndices.length][];
+    float[][] nd4jMemory = new float[charIndices.length][];
+    long start = System.nanoTime();
+    rnn.rnnClearPreviousState();
+    for(int t = 0; t < charIndices.length; t++){
+      INDArray input = Nd4j.zeros(kernel.getInputSize());
+      input.putScalar(charIndices[t], 1.0f);
+      INDArray output = rnn.rnnTimeStep(input);
+      INDArray memory = ((BaseRecurrentLayer<?>) rnn.getLayer(memoryLayer)).rnnGetPreviousState().get("prevMem");
+      nd4jOutputs[t] = new float[output.length()];
+      for(int i = 0; i < output.length(); i++) nd4jOutputs[t][i] = output.getFloat(i);
+      nd4jMemory[t] = new float[memory.length()];
+      for(int i = 0; i < memory.length(); i++) nd4jMemory[t][i] = memory.getFloat(i);
+    }
+    long nd4jNanos = System.nanoTime() - start;
+
+    LstmKernel.State state = kernel.newState();
+    double maxOutputDiff = 0.0;
+    double maxMemoryDiff = 0.0;
+    for(int t = 0; t < charIndices.length; t++){
+      state.step(charIndices[t]);
+      for(int i = 0; i < kernel.getOutputSize(); i++){
+        maxOutputDiff = Math.max(maxOutputDiff, Math.abs(state.getOutput()[i] - nd4jOutputs[t][i]));
+      }
+      for(int i = 0; i < kernel.getLayerSize(memoryLayer); i++){
+        maxMemoryDiff = Math.max(maxMemoryDiff, Math.abs(state.getMemory(memoryLayer)[i] - nd4jMemory[t][i]));
+      }
+    }
+
+    // timed separately so the comparison is not part of it
+    state.reset();
+    start = System.nanoTime();
+    for(int t = 0; t < charIndices.length; t++){
+      state.step(charIndices[t]);
+    }
+    long kernelNanos = System.nanoTime() - start;
+
+    System.out.println(String.format("%d chars: max output difference %.3g, max memory cell difference %.3g",
+        charIndices.length, maxOutputDiff, maxMemoryDiff));
+    System.out.println(String.format("ND4J rnnTimeStep: %.0f chars/sec, LstmKernel: %.0f chars/sec",
+        charIndices.length / (nd4jNanos / 1e9), charIndices.length / (kernelNanos / 1e9)));
+    if(maxOutputDiff > options.getTolerance() || maxMemoryDiff > options.getTolerance()){
+      throw new IllegalStateException("LstmKernel differs from ND4J by more than " + options.getTolerance());
+    }
+  }
+}
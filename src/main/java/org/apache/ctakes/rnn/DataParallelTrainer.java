@@ -0,0 +1,270 @@
+package org.apache.ctakes.rnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+import com.lexicalscope.jewel.cli.Unparsed;
+
+/**
+ * Trains copies of a network on several threads at once and averages their parameters every
+ * <code>averagingFrequency</code> minibatches. Each replica trains on its own PrefetchingDataSetIterator over the
+ * same character iterator, with its own seed, so the replicas see different minibatches and a run is reproducible
+ * for a given number of workers. The network passed in is the first replica and holds the averaged parameters
+ * after each call to fit.
+ * <p>
+ * Only the parameters are averaged; each replica keeps its own updater (RMSProp) state, which TrainingCheckpointer
+ * saves for every replica. Between averaging rounds every replica has the same parameters, so that is where a
+ * {@link RoundListener} can checkpoint in the middle of an epoch.
+ * <p>
+ * main() reports training chars/sec with 1, 2, 4, ... workers up to a maximum, for choosing the number of workers
+ * and the averaging frequency on a given machine.
+ */
+public class DataParallelTrainer implements TrainingMetricsListener.TrainingTimes {
+
+  public static interface RoundListener {
+    /**
+     * Called after each averaging round but the last of a call to fit, with the epoch and the minibatch of that
+     * epoch each worker continues with, and the minibatch each worker started the round with.
+     */
+    public void roundDone(int epoch, int fromBatch, int toBatch);
+  }
+
+  private final MultiLayerNetwork[] replicas;
+  private final PrefetchingDataSetIterator[] batches;
+  private final RandomBatchIterator source;
+  private final int averagingFrequency;
+  private final ExecutorService workers;
+  private RoundListener roundListener = null;
+  private long numChars = 0;
+  private long trainNanos = 0;
+  private long averageNanos = 0;
+
+  public DataParallelTrainer(MultiLayerNetwork net, RandomBatchIterator source, int numWorkers, int averagingFrequency, long seed, int prefetchDepth){
+    if(numWorkers < 1 || averagingFrequency < 1){
+      throw new IllegalArgumentException("Need a number of workers and an averaging frequency of at least 1, not " + numWorkers + " and " + averagingFrequency);
+    }
+    this.source = source;
+    this.averagingFrequency = averagingFrequency;
+    this.replicas = new MultiLayerNetwork[numWorkers];
+    this.batches = new PrefetchingDataSetIterator[numWorkers];
+    this.replicas[0] = net;
+    for(int i = 1; i < numWorkers; i++){
+      // a copy of the configuration, so that the replicas share no state
+      this.replicas[i] = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(net.getLayerWiseConfigurations().toJson()));
+      this.replicas[i].init();
+      this.replicas[i].setParameters(net.params().dup());
+    }
+    for(int i = 0; i < numWorkers; i++){
+      this.batches[i] = new PrefetchingDataSetIterator(source, seed + i, prefetchDepth, 1);
+    }
+    this.workers = Executors.newFixedThreadPool(numWorkers);
+  }
+
+  public int getNumWorkers(){
+    return this.replicas.length;
+  }
+
+  /**
+   * @return The replicas, the network passed in first, e.g. to checkpoint or restore their updater state.
+   */
+  public MultiLayerNetwork[] getReplicas(){
+    return this.replicas.clone();
+  }
+
+  public void setRoundListener(RoundListener roundListener){
+    this.roundListener = roundListener;
+  }
+
+  /**
+   * Train on one epoch's worth of minibatches, {@link RandomBatchIterator#numBatches()}, split between the workers.
+   * The minibatches depend only on the seed, the number of workers and the epoch.
+   */
+  public void fitEpoch(int epoch){
+    fitEpoch(epoch, 0);
+  }
+
+  /**
+   * Train on the rest of an epoch, from minibatch <code>batch</code> of each worker on, e.g. to resume from a
+   * checkpoint taken by a {@link RoundListener} with the same number of workers.
+   */
+  public void fitEpoch(int epoch, int batch){
+    for(PrefetchingDataSetIterator workerBatches : this.batches){
+      workerBatches.setPosition(epoch, batch);
+    }
+    int perWorker = (this.source.numBatches() + this.replicas.length - 1) / this.replicas.length;
+    fit(Math.max(0, perWorker - batch) * this.replicas.length);
+  }
+
+  /**
+   * Train on (about) the given number of minibatches, split evenly between the workers, averaging every
+   * averagingFrequency minibatches and at the end.
+   */
+  public void fit(int numBatches){
+    int perWorker = (numBatches + this.replicas.length - 1) / this.replicas.length;
+    for(int done = 0; done < perWorker; done += this.averagingFrequency){
+      final int roundBatches = Math.min(this.averagingFrequency, perWorker - done);
+      List<Callable<Void>> round = new ArrayList<>();
+      for(int i = 0; i < this.replicas.length; i++){
+        final MultiLayerNetwork replica = this.replicas[i];
+        final PrefetchingDataSetIterator workerBatches = this.batches[i];
+        round.add(new Callable<Void>(){
+          @Override
+          public Void call(){
+            for(int b = 0; b < roundBatches; b++){
+              if(!workerBatches.hasNext()){
+                workerBatches.reset();
+              }
+              replica.fit(workerBatches.next());
+            }
+            return null;
+          }
+        });
+      }
+      long start = System.nanoTime();
+      try{
+        for(Future<Void> future : this.workers.invokeAll(round)){
+          future.get();
+        }
+      }catch(InterruptedException e){
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }catch(ExecutionException e){
+        throw new RuntimeException(e.getCause());
+      }
+      long trained = System.nanoTime();
+      average();
+      this.averageNanos += System.nanoTime() - trained;
+      this.trainNanos += trained - start;
+      this.numChars += (long) roundBatches * this.replicas.length * this.source.batch() * CharacterIterator_ImplBase.EXAMPLE_SIZE;
+      if(this.roundListener != null && done + roundBatches < perWorker){
+        int toBatch = this.batches[0].getBatch();
+        this.roundListener.roundDone(this.batches[0].getEpoch(), toBatch - roundBatches, toBatch);
+      }
+    }
+  }
+
+  private void average(){
+    if(this.replicas.length == 1){
+      return;
+    }
+    INDArray average = this.replicas[0].params().dup();
+    for(int i = 1; i < this.replicas.length; i++){
+      average.addi(this.replicas[i].params());
+    }
+    average.divi(this.replicas.length);
+    for(int i = 1; i < this.replicas.length; i++){
+      this.replicas[i].setParameters(average.dup());
+    }
+    this.replicas[0].setParameters(average);
+  }
+
+  /**
+   * @return Characters trained on per second, counting the time spent averaging.
+   */
+  public double getCharsPerSecond(){
+    return this.numChars / ((this.trainNanos + this.averageNanos) / 1e9);
+  }
+
+  /**
+   * @return Seconds the workers have spent waiting for minibatches, averaged over the workers.
+   */
+  @Override
+  public double getWaitSeconds(){
+    double seconds = 0.0;
+    for(PrefetchingDataSetIterator workerBatches : this.batches){
+      seconds += workerBatches.getWaitSeconds();
+    }
+    return seconds / this.batches.length;
+  }
+
+  /**
+   * @return Seconds the workers have spent training between minibatches, averaged over the workers. This includes
+   * time a worker that finished a round early spends waiting for the others to finish it and for the averaging.
+   */
+  @Override
+  public double getTrainSeconds(){
+    double seconds = 0.0;
+    for(PrefetchingDataSetIterator workerBatches : this.batches){
+      seconds += workerBatches.getTrainSeconds();
+    }
+    return seconds / this.batches.length;
+  }
+
+  /**
+   * Start counting characters and time from 0.
+   */
+  public void resetTimes(){
+    this.numChars = 0;
+    this.trainNanos = 0;
+    this.averageNanos = 0;
+  }
+
+  public String getReport(){
+    return String.format("%d workers, averaging every %d minibatches: %d chars in %.1fs (%.1fs averaging), %.0f chars/sec",
+        this.replicas.length, this.averagingFrequency, this.numChars, (this.trainNanos + this.averageNanos) / 1e9,
+        this.averageNanos / 1e9, getCharsPerSecond());
+  }
+
+  public void shutdown(){
+    this.workers.shutdownNow();
+    for(PrefetchingDataSetIterator workerBatches : this.batches){
+      workerBatches.shutdown();
+    }
+  }
+
+  static interface Options {
+    @Unparsed(name="input", description="Lucene index, or a corpus written by ExportLuceneCorpus or EncodeCorpus")
+    public File getInput();
+
+    @Option(defaultValue={"0"}, description="Largest number of workers to try; 0 for the number of cores")
+    public int getMaxWorkers();
+
+    @Option(defaultValue={"10"})
+    public int getAveragingFrequency();
+
+    @Option(defaultValue={"200"}, description="Minibatches to time for each number of workers")
+    public int getNumBatches();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = CliFactory.parseArguments(Options.class, args);
+    int maxWorkers = options.getMaxWorkers() > 0 ? options.getMaxWorkers() : Runtime.getRuntime().availableProcessors();
+    CharacterIterator_ImplBase iter = TrainMimicRnn.getIterator(options.getInput());
+
+    double baseline = 0.0;
+    for(int numWorkers = 1; ; numWorkers = Math.min(2 * numWorkers, maxWorkers)){
+      MultiLayerNetwork net = new MultiLayerNetwork(TrainMimicRnn.getConfiguration(iter.inputColumns(), iter.totalOutcomes(), 200));
+      net.init();
+      DataParallelTrainer trainer = new DataParallelTrainer(net, iter, numWorkers, options.getAveragingFrequency(), 718, 4);
+      try{
+        // one round to warm up, which is not counted
+        trainer.fit(numWorkers * options.getAveragingFrequency());
+        trainer.resetTimes();
+        trainer.fit(options.getNumBatches());
+      }finally{
+        trainer.shutdown();
+      }
+      if(numWorkers == 1){
+        baseline = trainer.getCharsPerSecond();
+      }
+      double speedup = trainer.getCharsPerSecond() / baseline;
+      System.out.println(String.format("%s; %.2fx one worker, %.0f%% efficiency", trainer.getReport(), speedup, 100 * speedup / numWorkers));
+      if(numWorkers == maxWorkers){
+        break;
+      }
+    }
+  }
+}
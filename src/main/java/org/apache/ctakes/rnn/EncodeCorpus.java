@@ -0,0 +1,55 @@
+package org.apache.ctakes.rnn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Writes a text file of any size as an {@link EncodedCorpus} for EncodedCorpusIterator (and so for TrainMimicRnn),
+ * streaming it rather than reading it into memory. The vocabulary is taken from a model file if one is given so
+ * that training continues with the same characters, and is LuceneReaderCharacterIterator's otherwise.
+ */
+public class EncodeCorpus {
+  static interface Options {
+    @Option
+    public File getTextFile();
+
+    @Option
+    public File getOutputFile();
+
+    @Option(defaultToNull=true, description="Model file to take the vocabulary from")
+    public File getModelFile();
+
+    @Option(defaultValue={"UTF-8"})
+    public String getEncoding();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = CliFactory.parseArguments(Options.class, args);
+    CharVocabulary vocabulary = options.getModelFile() == null ? new LuceneReaderCharacterIterator().getVocabulary() :
+      RnnModelFile.load(options.getModelFile()).getVocabulary();
+
+    EncodedCorpus.Writer writer = new EncodedCorpus.Writer(options.getOutputFile(), vocabulary);
+    Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(options.getTextFile()), options.getEncoding()));
+    try{
+      char[] buffer = new char[1 << 16];
+      int len;
+      while((len = reader.read(buffer)) != -1){
+        for(int i = 0; i < len; i++){
+          writer.append(buffer[i]);
+        }
+      }
+    }finally{
+      reader.close();
+      writer.close();
+    }
+    System.out.println("Wrote " + writer.getLength() + " characters to " + options.getOutputFile() + " ("
+        + writer.getNumDropped() + " removed)");
+  }
+}
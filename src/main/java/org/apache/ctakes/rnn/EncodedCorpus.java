@@ -0,0 +1,277 @@
+package org.apache.ctakes.rnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Training text stored as one byte per character, each byte the character's index in a {@link CharVocabulary} of at
+ * most 256 characters, with characters outside the vocabulary dropped when the file is written. The file is
+ * memory-mapped, so the heap used does not grow with the size of the corpus and nothing needs to be read before
+ * training starts. Everything is little-endian:
+ * <pre>
+ * int magic ("CRPS"), int version, long number of characters, long number of documents (0 for one running text)
+ * the vocabulary: int size, int out-of-vocabulary index, one UTF-16 char per entry, padded to 8 bytes
+ * the character indices, padded to 8 bytes
+ * if there are documents, one long per document with the position of its first character, then the total length
+ * </pre>
+ * Files larger than 2GB are mapped in several pieces.
+ */
+public class EncodedCorpus {
+  public static final int MAGIC = 0x53505243;
+  public static final int VERSION = 1;
+  // size of each mapped piece of the character data
+  private static final int SEGMENT_BITS = 30;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+  private final CharVocabulary vocabulary;
+  private final long length;
+  private final ByteBuffer[] segments;
+  // null for one running text
+  private final LongBuffer docStarts;
+
+  private EncodedCorpus(CharVocabulary vocabulary, long length, ByteBuffer[] segments, LongBuffer docStarts){
+    this.vocabulary = vocabulary;
+    this.length = length;
+    this.segments = segments;
+    this.docStarts = docStarts;
+  }
+
+  public CharVocabulary getVocabulary(){
+    return this.vocabulary;
+  }
+
+  /**
+   * @return The number of characters in the corpus.
+   */
+  public long length(){
+    return this.length;
+  }
+
+  /**
+   * @return The number of documents, or 0 if the corpus is one running text.
+   */
+  public int getNumDocs(){
+    return this.docStarts == null ? 0 : this.docStarts.capacity() - 1;
+  }
+
+  /**
+   * @return The position of the first character of a document.
+   */
+  public long getDocStart(int doc){
+    return this.docStarts.get(doc);
+  }
+
+  /**
+   * @return The number of characters in a document.
+   */
+  public long getDocLength(int doc){
+    return this.docStarts.get(doc + 1) - this.docStarts.get(doc);
+  }
+
+  /**
+   * @return The vocabulary index of the character at a position.
+   */
+  public int get(long position){
+    return this.segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK)) & 0xff;
+  }
+
+  /**
+   * @return Whether a file starts like an encoded corpus.
+   */
+  public static boolean isEncodedCorpus(File file) throws IOException {
+    if(!file.isFile() || file.length() < 4){
+      return false;
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try{
+      return Integer.reverseBytes(in.readInt()) == MAGIC;
+    }finally{
+      in.close();
+    }
+  }
+
+  public static EncodedCorpus read(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try{
+      FileChannel channel = in.getChannel();
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 1 << 20)).order(ByteOrder.LITTLE_ENDIAN);
+      CharVocabulary vocabulary;
+      long length;
+      long numDocs;
+      try{
+        if(header.getInt() != MAGIC){
+          throw new IOException(file + " is not an encoded corpus");
+        }
+        int version = header.getInt();
+        if(version != VERSION){
+          throw new IOException(file + " is version " + version + " of the encoded corpus format, expected " + VERSION);
+        }
+        length = header.getLong();
+        numDocs = header.getLong();
+        vocabulary = CharVocabulary.readFrom(header);
+      }catch(BufferUnderflowException | IllegalArgumentException e){
+        throw new IOException(file + " has an invalid header", e);
+      }
+      long dataStart = pad(header.position());
+      long docStartsStart = dataStart + pad(length);
+      if(numDocs < 0 || numDocs >= Integer.MAX_VALUE){
+        throw new IOException(file + " has an invalid header");
+      }
+      long docStartsSize = numDocs == 0 ? 0 : 8 * (numDocs + 1);
+      if(dataStart + length > channel.size() || docStartsStart + docStartsSize > channel.size()){
+        throw new IOException(file + " is truncated");
+      }
+
+      // the pieces stay mapped after the channel is closed
+      ByteBuffer[] segments = new ByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+      for(int i = 0; i < segments.length; i++){
+        long start = (long) i << SEGMENT_BITS;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + start, Math.min(length - start, 1L << SEGMENT_BITS));
+      }
+      LongBuffer docStarts = null;
+      if(numDocs > 0){
+        docStarts = channel.map(FileChannel.MapMode.READ_ONLY, docStartsStart, docStartsSize).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        if(docStarts.get(0) != 0 || docStarts.get((int) numDocs) != length){
+          throw new IOException(file + " has an invalid document table");
+        }
+      }
+      return new EncodedCorpus(vocabulary, length, segments, docStarts);
+    }finally{
+      in.close();
+    }
+  }
+
+  static long pad(long bytes){
+    return (bytes + 7) & ~7L;
+  }
+
+  /**
+   * Writes an encoded corpus a character at a time, so the text never has to be in memory at once. Calling
+   * {@link #endDocument()} after each document makes a corpus of documents; otherwise it is one running text.
+   */
+  public static class Writer {
+    private final RandomAccessFile out;
+    private final FileChannel channel;
+    private final CharVocabulary vocabulary;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private final long dataStart;
+    private long length = 0;
+    private long numDropped = 0;
+    // the start of every document so far and the end of the last one
+    private long[] docStarts = new long[]{0};
+    private int numDocs = 0;
+
+    public Writer(File file, CharVocabulary vocabulary) throws IOException {
+      if(vocabulary.size() > 256){
+        throw new IllegalArgumentException("An encoded corpus holds at most 256 different characters, not " + vocabulary.size());
+      }
+      this.vocabulary = vocabulary;
+      this.out = new RandomAccessFile(file, "rw");
+      this.out.setLength(0);
+      this.channel = this.out.getChannel();
+      writeHeader();
+      this.dataStart = pad(this.buffer.position());
+      this.buffer.position((int) this.dataStart);
+    }
+
+    private void writeHeader(){
+      this.buffer.putInt(MAGIC).putInt(VERSION).putLong(this.length).putLong(this.numDocs);
+      this.vocabulary.writeTo(this.buffer);
+    }
+
+    /**
+     * Add a character, or drop it if it is not in the vocabulary.
+     */
+    public void append(char c) throws IOException {
+      if(!this.vocabulary.contains(c)){
+        this.numDropped++;
+        return;
+      }
+      if(!this.buffer.hasRemaining()){
+        flush();
+      }
+      this.buffer.put((byte) this.vocabulary.indexOf(c));
+      this.length++;
+    }
+
+    public void append(CharSequence text) throws IOException {
+      for(int i = 0; i < text.length(); i++){
+        append(text.charAt(i));
+      }
+    }
+
+    /**
+     * End the current document: the characters appended since the last call (or since the start) form it.
+     */
+    public void endDocument(){
+      if(this.numDocs + 2 > this.docStarts.length){
+        this.docStarts = Arrays.copyOf(this.docStarts, 2 * this.docStarts.length);
+      }
+      this.docStarts[++this.numDocs] = this.length;
+    }
+
+    public int getNumDocs(){
+      return this.numDocs;
+    }
+
+    public long getLength(){
+      return this.length;
+    }
+
+    /**
+     * @return The number of characters dropped because they were not in the vocabulary.
+     */
+    public long getNumDropped(){
+      return this.numDropped;
+    }
+
+    private void flush() throws IOException {
+      this.buffer.flip();
+      while(this.buffer.hasRemaining()){
+        this.channel.write(this.buffer);
+      }
+      this.buffer.clear();
+    }
+
+    /**
+     * Pad the data, write the document table, fill in the header and close the file. A corpus of documents must
+     * end with {@link #endDocument()}.
+     */
+    public void close() throws IOException {
+      try{
+        long end = this.dataStart + this.length;
+        for(long i = end; i < pad(end); i++){
+          if(!this.buffer.hasRemaining()){
+            flush();
+          }
+          this.buffer.put((byte) 0);
+        }
+        if(this.numDocs > 0 && this.docStarts[this.numDocs] != this.length){
+          throw new IllegalStateException((this.length - this.docStarts[this.numDocs]) + " characters after the last document");
+        }
+        for(int i = 0; this.numDocs > 0 && i <= this.numDocs; i++){
+          if(this.buffer.remaining() < 8){
+            flush();
+          }
+          this.buffer.putLong(this.docStarts[i]);
+        }
+        flush();
+        writeHeader();
+        this.buffer.flip();
+        long position = 0;
+        while(this.buffer.hasRemaining()){
+          position += this.channel.write(this.buffer, position);
+        }
+      }finally{
+        this.out.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.apache.ctakes.rnn;
+
+import java.util.Random;
+
+import org.nd4j.linalg.dataset.DataSet;
+
+/**
+ * Samples training examples from an {@link EncodedCorpus} the way CharacterIterator samples them from a text file:
+ * each example starts at a random position, optionally moved back to the start of its line (up to MAX_SCAN_LENGTH
+ * characters), and the labels are the inputs shifted by one character. The corpus is memory-mapped and already
+ * holds vocabulary indices, so nothing is loaded up front and nothing is looked up per character.
+ */
+public class EncodedCorpusIterator extends CharacterIterator_ImplBase {
+
+  private static final long serialVersionUID = 1L;
+  private static final int MAX_SCAN_LENGTH = 200;
+
+  private final EncodedCorpus corpus;
+  private final Random rng;
+  private final boolean alwaysStartAtNewLine;
+  private final int newLineIndex;
+
+  /**
+   * @param numExamples Number of examples per epoch.
+   */
+  public EncodedCorpusIterator(EncodedCorpus corpus, int numExamples, Random rng, boolean alwaysStartAtNewLine){
+    if(corpus.length() <= EXAMPLE_SIZE){
+      throw new IllegalArgumentException("The corpus has only " + corpus.length() + " characters, fewer than an example");
+    }
+    this.corpus = corpus;
+    this.rng = rng;
+    this.alwaysStartAtNewLine = alwaysStartAtNewLine;
+    this.maxChars = numExamples;
+    this.vocabulary = corpus.getVocabulary();
+    this.validChars = this.vocabulary.getChars();
+    this.numCharacters = this.validChars.length;
+    this.newLineIndex = this.vocabulary.contains('\n') ? this.vocabulary.indexOf('\n') : CharVocabulary.NOT_FOUND;
+  }
+
+  @Override
+  protected Random getRandom() {
+    return rng;
+  }
+
+  @Override
+  public DataSet next(int size, Random rng) {
+    OneHotVectorizer vectorizer = new OneHotVectorizer(numCharacters, EXAMPLE_SIZE);
+    int[] window = new int[EXAMPLE_SIZE + 1];
+    vectorizer.start(size);
+    long maxStartIdx = corpus.length() - EXAMPLE_SIZE;
+
+    for(int i = 0; i < size; i++){
+      long startIdx = (long) (rng.nextDouble() * maxStartIdx);
+      int scanLength = 0;
+      if(alwaysStartAtNewLine && newLineIndex != CharVocabulary.NOT_FOUND){
+        while(startIdx >= 1 && corpus.get(startIdx-1) != newLineIndex && scanLength++ < MAX_SCAN_LENGTH){
+          startIdx--;
+        }
+      }
+
+      for(int c = 0; c <= EXAMPLE_SIZE; c++){
+        window[c] = corpus.get(startIdx + c);
+      }
+      vectorizer.setExample(i, window);
+    }
+    return vectorizer.finish();
+  }
+
+  @Override
+  public char[] getCharacterSet(){
+    return this.validChars.clone();
+  }
+}
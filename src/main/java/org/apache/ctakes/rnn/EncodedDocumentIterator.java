@@ -0,0 +1,80 @@
+package org.apache.ctakes.rnn;
+
+import java.util.Random;
+
+import org.nd4j.linalg.dataset.DataSet;
+
+/**
+ * Samples training examples from an {@link EncodedCorpus} of documents (see ExportLuceneCorpus) the way
+ * LuceneReaderCharacterIterator samples them from the index: each minibatch picks a random document long enough
+ * for an example and takes every example from a random position in it. The document table is in the corpus, so
+ * picking a document is an array lookup rather than a stored-field read.
+ * <p>
+ * The corpus no longer holds the characters outside the vocabulary, which the Lucene iterator leaves as empty
+ * steps, so the examples are not identical to that iterator's.
+ */
+public class EncodedDocumentIterator extends CharacterIterator_ImplBase {
+
+  private static final long serialVersionUID = 1L;
+
+  private final EncodedCorpus corpus;
+  private final Random rng;
+  // the documents with at least EXAMPLE_SIZE+1 characters
+  private final int[] docs;
+
+  public EncodedDocumentIterator(EncodedCorpus corpus){
+    this(corpus, MINI_BATCH_SIZE * 500, new Random(718));
+  }
+
+  /**
+   * @param maxChars Number of examples per epoch.
+   */
+  public EncodedDocumentIterator(EncodedCorpus corpus, int maxChars, Random rng){
+    int numLong = 0;
+    for(int doc = 0; doc < corpus.getNumDocs(); doc++){
+      if(corpus.getDocLength(doc) > EXAMPLE_SIZE) numLong++;
+    }
+    if(numLong == 0){
+      throw new IllegalArgumentException("The corpus has no documents of more than " + EXAMPLE_SIZE + " characters");
+    }
+    this.docs = new int[numLong];
+    for(int doc = 0, i = 0; doc < corpus.getNumDocs(); doc++){
+      if(corpus.getDocLength(doc) > EXAMPLE_SIZE) this.docs[i++] = doc;
+    }
+    this.corpus = corpus;
+    this.rng = rng;
+    this.maxChars = maxChars;
+    this.vocabulary = corpus.getVocabulary();
+    this.validChars = this.vocabulary.getChars();
+    this.numCharacters = this.validChars.length;
+  }
+
+  @Override
+  protected Random getRandom() {
+    return rng;
+  }
+
+  @Override
+  public DataSet next(int size, Random rng) {
+    OneHotVectorizer vectorizer = new OneHotVectorizer(numCharacters, EXAMPLE_SIZE);
+    int[] window = new int[EXAMPLE_SIZE + 1];
+    vectorizer.start(size);
+
+    int doc = docs[rng.nextInt(docs.length)];
+    long docStart = corpus.getDocStart(doc);
+    int docLength = (int) Math.min(corpus.getDocLength(doc), Integer.MAX_VALUE);
+    for(int i = 0; i < size; i++){
+      long startIdx = docStart + rng.nextInt(docLength - EXAMPLE_SIZE);
+      for(int c = 0; c <= EXAMPLE_SIZE; c++){
+        window[c] = corpus.get(startIdx + c);
+      }
+      vectorizer.setExample(i, window);
+    }
+    return vectorizer.finish();
+  }
+
+  @Override
+  public char[] getCharacterSet(){
+    return this.validChars.clone();
+  }
+}
@@ -0,0 +1,74 @@
+package org.apache.ctakes.rnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Writes the documents of the Lucene index LuceneReaderCharacterIterator trains from as an {@link EncodedCorpus}
+ * of documents, for EncodedDocumentIterator. The index is read once, segment by segment in document order, which
+ * reads the stored fields sequentially instead of decompressing a random block for every minibatch. Characters
+ * outside the vocabulary are removed; the vocabulary is taken from a model file if one is given, and is
+ * LuceneReaderCharacterIterator's otherwise.
+ */
+public class ExportLuceneCorpus {
+  static interface Options {
+    @Option
+    public File getIndexDir();
+
+    @Option
+    public File getOutputFile();
+
+    @Option(defaultToNull=true, description="Model file to take the vocabulary from")
+    public File getModelFile();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = CliFactory.parseArguments(Options.class, args);
+    CharVocabulary vocabulary = options.getModelFile() == null ? new LuceneReaderCharacterIterator().getVocabulary() :
+      RnnModelFile.load(options.getModelFile()).getVocabulary();
+    Set<String> fields = Collections.singleton(LuceneReaderCharacterIterator.textFieldName);
+
+    long start = System.nanoTime();
+    int numSkipped = 0;
+    DirectoryReader ireader = DirectoryReader.open(FSDirectory.open(options.getIndexDir()));
+    EncodedCorpus.Writer writer = new EncodedCorpus.Writer(options.getOutputFile(), vocabulary);
+    try{
+      for(AtomicReaderContext leaf : ireader.leaves()){
+        AtomicReader reader = leaf.reader();
+        Bits liveDocs = reader.getLiveDocs();
+        for(int docNum = 0; docNum < reader.maxDoc(); docNum++){
+          if(liveDocs != null && !liveDocs.get(docNum)){
+            continue;
+          }
+          Document doc = reader.document(docNum, fields);
+          IndexableField field = doc.getField(LuceneReaderCharacterIterator.textFieldName);
+          if(field == null || field.stringValue() == null){
+            numSkipped++;
+            continue;
+          }
+          writer.append(field.stringValue());
+          writer.endDocument();
+        }
+      }
+    }finally{
+      writer.close();
+      ireader.close();
+    }
+    System.out.println(String.format("Wrote %d documents, %d characters to %s in %.1fs (%d characters removed, %d documents without text)",
+        writer.getNumDocs(), writer.getLength(), options.getOutputFile(), (System.nanoTime() - start) / 1e9,
+        writer.getNumDropped(), numSkipped));
+  }
+}
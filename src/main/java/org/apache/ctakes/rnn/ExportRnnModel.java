@@ -0,0 +1,57 @@
+package org.apache.ctakes.rnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Converts a serialized MultiLayerNetwork from TrainMimicRnn into an {@link RnnModelFile}, then reads the new file
+ * back and checks that it gives exactly the same network output as the original. The vocabulary written is
+ * LuceneReaderCharacterIterator's, which is what such networks were trained with.
+ */
+public class ExportRnnModel {
+  static interface Options {
+    @Option
+    public File getModelFile();
+
+    @Option
+    public File getOutputFile();
+
+    @Option(defaultValue={"1000"})
+    public int getNumChars();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = CliFactory.parseArguments(Options.class, args);
+    long start = System.nanoTime();
+    RnnModelFile original = RnnModelFile.load(options.getModelFile());
+    long deserializeNanos = System.nanoTime() - start;
+    RnnModelFile.write(options.getOutputFile(), original.getKernel(), original.getVocabulary());
+
+    start = System.nanoTime();
+    RnnModelFile exported = RnnModelFile.read(options.getOutputFile());
+    long mapNanos = System.nanoTime() - start;
+    if(exported.getKernel().maxWeightDifference(original.getKernel()) != 0.0){
+      throw new IllegalStateException("The weights read back from " + options.getOutputFile() + " differ from the network's");
+    }
+
+    LstmKernel.State originalState = original.getKernel().newState();
+    LstmKernel.State exportedState = exported.getKernel().newState();
+    Random random = new Random(12345);
+    for(int t = 0; t < options.getNumChars(); t++){
+      int charIndex = random.nextInt(original.getKernel().getInputSize());
+      originalState.step(charIndex);
+      exportedState.step(charIndex);
+      for(int i = 0; i < original.getKernel().getOutputSize(); i++){
+        if(originalState.getOutput()[i] != exportedState.getOutput()[i]){
+          throw new IllegalStateException("The output of the exported model differs at step " + t);
+        }
+      }
+    }
+    System.out.println(String.format("Wrote %s (%d bytes). Loading took %.1f ms deserialized, %.1f ms mapped.",
+        options.getOutputFile(), options.getOutputFile().length(), deserializeNanos / 1e6, mapNanos / 1e6));
+  }
+}
@@ -0,0 +1,351 @@
+package org.apache.ctakes.rnn;
+
+import java.util.Arrays;
+
+import org.apache.ctakes.rnn.WeightMatrix.FloatMatrix;
+import org.apache.ctakes.rnn.WeightMatrix.Int8Matrix;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.layers.recurrent.GravesLSTM;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * Forward-only inference for character networks like the one TrainMimicRnn builds (GravesLSTM layers with tanh
+ * activations, then a softmax RnnOutputLayer), in plain Java over flat float arrays.
+ * <p>
+ * The weights are copied out of the network once and never change, so one kernel can be shared by any number of
+ * threads, each stepping its own {@link State}. Since the input is a one-hot character, the first layer's input
+ * projection is just the weight row of that character. A step allocates nothing.
+ * <p>
+ * The gate math is GravesLSTM's: pre-activations are laid out as [input activation, forget, output, input
+ * modulation] blocks of the layer size, and the forget and input modulation gates see the previous memory cells
+ * through peephole weights while the output gate sees the new ones. LstmKernelTest checks it against ND4J, and
+ * CheckLstmKernel compares the two on a trained model.
+ * <p>
+ * The input, recurrent and output weight matrices can be stored as int8 with one scale per row, see
+ * {@link #quantize()}; they are dequantized row by row as they are multiplied, so a step still allocates nothing.
+ * Peepholes and biases are small and stay float. Kernels are saved and loaded with RnnModelFile, which reads the
+ * weight matrices in place from the mapped file.
+ */
+public class LstmKernel {
+
+  private final int inputSize;
+  private final int numLstmLayers;
+  private final int[] layerSizes;
+  private final int[] layerInputSizes;
+  // per LSTM layer, row-major: input weights [in][4n], recurrent weights [n][4n], peepholes [n][3], bias [4n]
+  private final WeightMatrix[] inputWeights;
+  private final WeightMatrix[] recurrentWeights;
+  private final float[][] peepholes;
+  private final float[][] biases;
+  // softmax output layer: weights [n][outputSize], bias [outputSize]
+  private final int outputSize;
+  private final WeightMatrix outputWeights;
+  private final float[] outputBias;
+
+  public LstmKernel(int[] layerSizes, int inputSize, float[][] inputWeights, float[][] recurrentWeights, float[][] peepholes,
+      float[][] biases, int outputSize, float[] outputWeights, float[] outputBias){
+    this(layerSizes, inputSize, toMatrices(inputWeights, layerSizes), toMatrices(recurrentWeights, layerSizes), peepholes, biases,
+        outputSize, new FloatMatrix(outputWeights, outputSize), outputBias);
+  }
+
+  LstmKernel(int[] layerSizes, int inputSize, WeightMatrix[] inputWeights, WeightMatrix[] recurrentWeights, float[][] peepholes,
+      float[][] biases, int outputSize, WeightMatrix outputWeights, float[] outputBias){
+    this.inputSize = inputSize;
+    this.numLstmLayers = layerSizes.length;
+    this.layerSizes = layerSizes;
+    this.layerInputSizes = new int[this.numLstmLayers];
+    for(int l = 0; l < this.numLstmLayers; l++){
+      this.layerInputSizes[l] = l == 0 ? inputSize : layerSizes[l-1];
+      int n = layerSizes[l];
+      if(!hasShape(inputWeights[l], this.layerInputSizes[l], 4 * n) || !hasShape(recurrentWeights[l], n, 4 * n)
+          || peepholes[l].length != n * 3 || biases[l].length != 4 * n){
+        throw new IllegalArgumentException("Weights of LSTM layer " + l + " do not match its size");
+      }
+    }
+    if(!hasShape(outputWeights, layerSizes[this.numLstmLayers-1], outputSize) || outputBias.length != outputSize){
+      throw new IllegalArgumentException("Output layer weights do not match its size");
+    }
+    this.inputWeights = inputWeights;
+    this.recurrentWeights = recurrentWeights;
+    this.peepholes = peepholes;
+    this.biases = biases;
+    this.outputSize = outputSize;
+    this.outputWeights = outputWeights;
+    this.outputBias = outputBias;
+  }
+
+  private static WeightMatrix[] toMatrices(float[][] values, int[] layerSizes){
+    WeightMatrix[] matrices = new WeightMatrix[values.length];
+    for(int l = 0; l < values.length; l++){
+      matrices[l] = new FloatMatrix(values[l], 4 * layerSizes[l]);
+    }
+    return matrices;
+  }
+
+  private static boolean hasShape(WeightMatrix matrix, int rows, int cols){
+    return matrix.rows == rows && matrix.cols == cols;
+  }
+
+  /**
+   * @return A kernel for the same network with the input, recurrent and output weights stored as int8, each row
+   * scaled by its largest absolute value, or this kernel if it is already quantized.
+   */
+  public LstmKernel quantize(){
+    if(isQuantized()){
+      return this;
+    }
+    WeightMatrix[] quantizedInput = new WeightMatrix[this.numLstmLayers];
+    WeightMatrix[] quantizedRecurrent = new WeightMatrix[this.numLstmLayers];
+    for(int l = 0; l < this.numLstmLayers; l++){
+      quantizedInput[l] = new Int8Matrix(this.inputWeights[l]);
+      quantizedRecurrent[l] = new Int8Matrix(this.recurrentWeights[l]);
+    }
+    return new LstmKernel(this.layerSizes, this.inputSize, quantizedInput, quantizedRecurrent, this.peepholes, this.biases,
+        this.outputSize, new Int8Matrix(this.outputWeights), this.outputBias);
+  }
+
+  public boolean isQuantized(){
+    return this.outputWeights.isInt8();
+  }
+
+  /**
+   * @return The memory taken by the weights, biases and quantization scales, in bytes.
+   */
+  public long getWeightBytes(){
+    long bytes = 4L * (this.outputBias.length);
+    for(int l = 0; l < this.numLstmLayers; l++){
+      bytes += this.inputWeights[l].sizeInBytes() + this.recurrentWeights[l].sizeInBytes();
+      bytes += 4L * (this.peepholes[l].length + this.biases[l].length);
+    }
+    return bytes + this.outputWeights.sizeInBytes();
+  }
+
+  /**
+   * @return The largest absolute difference between any weight of this kernel and the same weight of the other,
+   * e.g. the rounding error of a quantized kernel.
+   */
+  public double maxWeightDifference(LstmKernel other){
+    double max = maxDifference(this.outputWeights, other.outputWeights);
+    for(int l = 0; l < this.numLstmLayers; l++){
+      max = Math.max(max, maxDifference(this.inputWeights[l], other.inputWeights[l]));
+      max = Math.max(max, maxDifference(this.recurrentWeights[l], other.recurrentWeights[l]));
+    }
+    return max;
+  }
+
+  private static double maxDifference(WeightMatrix a, WeightMatrix b){
+    double max = 0.0;
+    for(int r = 0; r < a.rows; r++){
+      for(int c = 0; c < a.cols; c++){
+        max = Math.max(max, Math.abs(a.get(r, c) - b.get(r, c)));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Copy the weights out of a trained network.
+   */
+  public static LstmKernel fromNetwork(MultiLayerNetwork net){
+    Layer[] layers = net.getLayers();
+    int numLstmLayers = layers.length - 1;
+    int[] layerSizes = new int[numLstmLayers];
+    float[][] inputWeights = new float[numLstmLayers][];
+    float[][] recurrentWeights = new float[numLstmLayers][];
+    float[][] peepholes = new float[numLstmLayers][];
+    float[][] biases = new float[numLstmLayers][];
+    for(int l = 0; l < numLstmLayers; l++){
+      if(!(layers[l] instanceof GravesLSTM) || !"tanh".equals(layers[l].conf().getLayer().getActivationFunction())){
+        throw new IllegalArgumentException("Layer " + l + " is not a GravesLSTM layer with tanh activations");
+      }
+      int n = ((FeedForwardLayer) layers[l].conf().getLayer()).getNOut();
+      layerSizes[l] = n;
+      inputWeights[l] = toFloats(SegmentActivations.toRowMajor(layers[l].getParam("W")));
+      biases[l] = toFloats(SegmentActivations.toRowMajor(layers[l].getParam("b")));
+      // the recurrent weights have the three peephole columns on the end of each row
+      float[] rw = toFloats(SegmentActivations.toRowMajor(layers[l].getParam("RW")));
+      recurrentWeights[l] = new float[n * 4 * n];
+      peepholes[l] = new float[n * 3];
+      for(int k = 0; k < n; k++){
+        System.arraycopy(rw, k * (4*n+3), recurrentWeights[l], k * 4 * n, 4 * n);
+        System.arraycopy(rw, k * (4*n+3) + 4 * n, peepholes[l], k * 3, 3);
+      }
+    }
+    Layer outputLayer = layers[numLstmLayers];
+    if(!"softmax".equals(outputLayer.conf().getLayer().getActivationFunction())){
+      throw new IllegalArgumentException("The last layer is not a softmax output layer");
+    }
+    return new LstmKernel(layerSizes, ((FeedForwardLayer) layers[0].conf().getLayer()).getNIn(), inputWeights, recurrentWeights, peepholes, biases,
+        ((FeedForwardLayer) outputLayer.conf().getLayer()).getNOut(), toFloats(SegmentActivations.toRowMajor(outputLayer.getParam("W"))),
+        toFloats(SegmentActivations.toRowMajor(outputLayer.getParam("b"))));
+  }
+
+  static float[] toFloats(double[] values){
+    float[] floats = new float[values.length];
+    for(int i = 0; i < values.length; i++){
+      floats[i] = (float) values[i];
+    }
+    return floats;
+  }
+
+  public int getInputSize(){
+    return this.inputSize;
+  }
+
+  public int getOutputSize(){
+    return this.outputSize;
+  }
+
+  public int getNumLstmLayers(){
+    return this.numLstmLayers;
+  }
+
+  public int getLayerSize(int layer){
+    return this.layerSizes[layer];
+  }
+
+  // for RnnModelFile
+  WeightMatrix getInputWeights(int layer){
+    return this.inputWeights[layer];
+  }
+
+  WeightMatrix getRecurrentWeights(int layer){
+    return this.recurrentWeights[layer];
+  }
+
+  float[] getPeepholes(int layer){
+    return this.peepholes[layer];
+  }
+
+  float[] getBiases(int layer){
+    return this.biases[layer];
+  }
+
+  WeightMatrix getOutputWeights(){
+    return this.outputWeights;
+  }
+
+  float[] getOutputBias(){
+    return this.outputBias;
+  }
+
+  public State newState(){
+    return new State();
+  }
+
+  /**
+   * The recurrent state of one sequence, and the buffers to step it with. Not thread-safe.
+   */
+  public class State {
+    private final float[][] hidden;
+    private final float[][] memory;
+    private final float[][] gates;
+    private final float[] output;
+
+    private State(){
+      this.hidden = new float[numLstmLayers][];
+      this.memory = new float[numLstmLayers][];
+      this.gates = new float[numLstmLayers][];
+      for(int l = 0; l < numLstmLayers; l++){
+        this.hidden[l] = new float[layerSizes[l]];
+        this.memory[l] = new float[layerSizes[l]];
+        this.gates[l] = new float[4 * layerSizes[l]];
+      }
+      this.output = new float[outputSize];
+    }
+
+    /**
+     * Back to the state before any input, like rnnClearPreviousState.
+     */
+    public void reset(){
+      for(int l = 0; l < numLstmLayers; l++){
+        Arrays.fill(this.hidden[l], 0f);
+        Arrays.fill(this.memory[l], 0f);
+      }
+    }
+
+    /**
+     * Feed one character in, by its input index.
+     */
+    public void step(int charIndex){
+      for(int l = 0; l < numLstmLayers; l++){
+        int n = layerSizes[l];
+        int n4 = 4 * n;
+        float[] z = this.gates[l];
+        System.arraycopy(biases[l], 0, z, 0, n4);
+        if(l == 0){
+          // one-hot input: the projection is a single row of the input weights
+          inputWeights[0].addRow(charIndex, 1f, z);
+        }else{
+          inputWeights[l].addProduct(this.hidden[l-1], z);
+        }
+        // the hidden state is still the previous step's here
+        recurrentWeights[l].addProduct(this.hidden[l], z);
+        updateCells(z, peepholes[l], this.memory[l], this.hidden[l]);
+      }
+
+      // softmax output
+      float[] top = this.hidden[numLstmLayers-1];
+      System.arraycopy(outputBias, 0, this.output, 0, outputSize);
+      outputWeights.addProduct(top, this.output);
+      float max = Float.NEGATIVE_INFINITY;
+      for(int i = 0; i < outputSize; i++){
+        max = Math.max(max, this.output[i]);
+      }
+      float sum = 0f;
+      for(int i = 0; i < outputSize; i++){
+        this.output[i] = (float) Math.exp(this.output[i] - max);
+        sum += this.output[i];
+      }
+      for(int i = 0; i < outputSize; i++){
+        this.output[i] /= sum;
+      }
+    }
+
+    /**
+     * @return The network output after the last step. The array is reused by the next step.
+     */
+    public float[] getOutput(){
+      return this.output;
+    }
+
+    /**
+     * @return The memory cells of an LSTM layer after the last step, what rnnGetPreviousState().get("prevMem")
+     * holds. The array is reused by the next step.
+     */
+    public float[] getMemory(int layer){
+      return this.memory[layer];
+    }
+
+    /**
+     * @return The output of an LSTM layer after the last step. The array is reused by the next step.
+     */
+    public float[] getHidden(int layer){
+      return this.hidden[layer];
+    }
+  }
+
+  /**
+   * GravesLSTM's cell update, the one place it is written down (SegmentActivations uses it too). z holds the gate
+   * pre-activations of one step without the peephole terms, p the peepholes [n][3] and c the memory cells, which are
+   * updated in place. The layer output is written to h, unless h is null.
+   */
+  static void updateCells(float[] z, float[] p, float[] c, float[] h){
+    int n = c.length;
+    for(int j = 0; j < n; j++){
+      float a = (float) Math.tanh(z[j]);
+      float f = sigmoid(z[n + j] + p[3*j] * c[j]);
+      float g = sigmoid(z[3*n + j] + p[3*j + 2] * c[j]);
+      c[j] = f * c[j] + g * a;
+      if(h != null){
+        float o = sigmoid(z[2*n + j] + p[3*j + 1] * c[j]);
+        h[j] = o * (float) Math.tanh(c[j]);
+      }
+    }
+  }
+
+  private static float sigmoid(float x){
+    return (float) (1.0 / (1.0 + Math.exp(-x)));
+  }
+}
@@ -2,10 +2,8 @@ package org.apache.ctakes.rnn;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 import org.apache.lucene.document.Document;
@@ -14,10 +12,8 @@ import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.deeplearning4j.datasets.iterator.DataSetIterator;
-import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.factory.Nd4j;
 
 public class LuceneReaderCharacterIterator extends CharacterIterator_ImplBase {
 
@@ -44,9 +40,7 @@ public class LuceneReaderCharacterIterator extends CharacterIterator_ImplBase {
     this.maxChars = MINI_BATCH_SIZE * 500;
     this.validChars = getCharacterSet();
     this.numCharacters = validChars.length;
-    //Store valid characters is a map for later use in vectorization
-    charToIdxMap = new HashMap<>();
-    for( int i=0; i<validChars.length; i++ ) charToIdxMap.put(validChars[i], i);
+    vocabulary = new CharVocabulary(validChars);
     
     try {
       dir = FSDirectory.open(new File(indexDir));
@@ -57,13 +51,18 @@ public class LuceneReaderCharacterIterator extends CharacterIterator_ImplBase {
   }
   
   @Override
-  public DataSet next(int size) {
+  protected Random getRandom() {
+    return rand;
+  }
+
+  @Override
+  public DataSet next(int size, Random rand) {
     Document doc = null;
     String docText = null;
     IndexableField field = null;
     
-    INDArray input = Nd4j.zeros(new int[]{size,numCharacters,EXAMPLE_SIZE});
-    INDArray labels = Nd4j.zeros(new int[]{size,numCharacters,EXAMPLE_SIZE});
+    OneHotVectorizer vectorizer = new OneHotVectorizer(numCharacters, EXAMPLE_SIZE);
+    vectorizer.start(size);
 
     for(int i = 0; i < size; i++){
       while(doc == null || docText == null || docText.length() < EXAMPLE_SIZE+1){
@@ -84,22 +83,17 @@ public class LuceneReaderCharacterIterator extends CharacterIterator_ImplBase {
       int c = 0;
       
       for(int idx = startPos; idx < startPos + EXAMPLE_SIZE; idx++, c++){
-        char curChar = docText.charAt(idx);
-        char nextChar = docText.charAt(idx+1);
+        int curCharIdx = vocabulary.indexOf(docText.charAt(idx));
+        int nextCharIdx = vocabulary.indexOf(docText.charAt(idx+1));
         
-        if(!charToIdxMap.containsKey(curChar) || !charToIdxMap.containsKey(nextChar)){
+        if(curCharIdx == CharVocabulary.NOT_FOUND || nextCharIdx == CharVocabulary.NOT_FOUND){
           continue;
         }
         
-        int curCharIdx = getCharIndex(curChar);
-        int nextCharIdx = getCharIndex(nextChar);
-        
-        input.putScalar(new int[]{i, curCharIdx, c}, 1.0);
-        labels.putScalar(new int[]{i, nextCharIdx, c}, 1.0);
+        vectorizer.set(i, c, curCharIdx, nextCharIdx);
       }
     }
-    charNum += size;
-    return new DataSet(input, labels);
+    return vectorizer.finish();
   }
 
   @Override
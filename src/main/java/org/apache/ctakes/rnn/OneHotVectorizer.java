@@ -0,0 +1,68 @@
+package org.apache.ctakes.rnn;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Builds the one-hot input and label arrays of a character minibatch in plain float arrays, laid out the way ND4J
+ * lays out a [examples, characters, steps] array in c order, and hands them to ND4J once per minibatch. Setting
+ * a character is an array store rather than a putScalar call with its own index array.
+ * <p>
+ * The arrays become the data of the minibatch's INDArrays, which the minibatch may outlive (e.g. in a prefetch
+ * queue), so each minibatch gets new ones. A vectorizer builds one minibatch at a time; threads building
+ * minibatches at once each need their own.
+ */
+public class OneHotVectorizer {
+
+  private final int numCharacters;
+  private final int exampleLength;
+  private int size;
+  private float[] input;
+  private float[] labels;
+
+  public OneHotVectorizer(int numCharacters, int exampleLength){
+    this.numCharacters = numCharacters;
+    this.exampleLength = exampleLength;
+  }
+
+  /**
+   * Start a minibatch of the given number of examples, all zero.
+   */
+  public void start(int size){
+    this.size = size;
+    this.input = new float[size * this.numCharacters * this.exampleLength];
+    this.labels = new float[size * this.numCharacters * this.exampleLength];
+  }
+
+  /**
+   * Set the input and label characters of one step of one example.
+   */
+  public void set(int example, int step, int inputIndex, int labelIndex){
+    int exampleOffset = example * this.numCharacters;
+    this.input[(exampleOffset + inputIndex) * this.exampleLength + step] = 1f;
+    this.labels[(exampleOffset + labelIndex) * this.exampleLength + step] = 1f;
+  }
+
+  /**
+   * Set a whole example from a run of exampleLength+1 character indices: each one is the input of its step and
+   * the label of the step before.
+   */
+  public void setExample(int example, int[] indices){
+    for(int step = 0; step < this.exampleLength; step++){
+      set(example, step, indices[step], indices[step + 1]);
+    }
+  }
+
+  /**
+   * @return The minibatch set since {@link #start(int)}.
+   */
+  public DataSet finish(){
+    int[] shape = new int[]{this.size, this.numCharacters, this.exampleLength};
+    INDArray inputArray = Nd4j.create(this.input, shape, 'c');
+    INDArray labelArray = Nd4j.create(this.labels, shape, 'c');
+    this.input = null;
+    this.labels = null;
+    return new DataSet(inputArray, labelArray);
+  }
+}
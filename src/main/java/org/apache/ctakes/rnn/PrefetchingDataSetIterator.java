@@ -0,0 +1,256 @@
+package org.apache.ctakes.rnn;
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+
+/**
+ * Wraps a {@link RandomBatchIterator} so that its minibatches are built on background threads while the network
+ * trains on the previous ones. Up to <code>depth</code> minibatches are built or waiting at any time, by
+ * <code>numWorkers</code> threads, and they are returned in order. hasNext(), next() and reset() behave like the
+ * wrapped iterator's: an epoch is {@link RandomBatchIterator#numBatches()} minibatches.
+ * <p>
+ * Minibatch i of epoch e is drawn from a Random seeded from (seed, e, i) alone, so the same seed gives the same
+ * minibatches whatever the number of workers or the timing of the threads. They are not the minibatches the wrapped
+ * iterator's own Random would give.
+ * <p>
+ * The time next() spends waiting for a minibatch and the time between minibatches (the caller's training step)
+ * are counted separately, see {@link #getReport()}. Call {@link #shutdown()} when done.
+ */
+public class PrefetchingDataSetIterator implements DataSetIterator, TrainingMetricsListener.TrainingTimes {
+
+  private static final long serialVersionUID = 1L;
+
+  private final RandomBatchIterator source;
+  private final long seed;
+  private final int depth;
+  private final int numWorkers;
+  private final ExecutorService workers;
+  private final ArrayDeque<Future<DataSet>> pending = new ArrayDeque<>();
+  private int epoch = 0;
+  private int numReturned = 0;
+  private int numSubmitted = 0;
+
+  // written by the thread calling next(), but may be read from others (see DataParallelTrainer)
+  private volatile long waitNanos = 0;
+  private volatile long trainNanos = 0;
+  private long lastReturned = -1;
+  private int numWaited = 0;
+  private final AtomicLong buildNanos = new AtomicLong();
+
+  public PrefetchingDataSetIterator(RandomBatchIterator source, long seed, int depth, int numWorkers){
+    if(depth < 1 || numWorkers < 1){
+      throw new IllegalArgumentException("Need a depth and a number of workers of at least 1, not " + depth + " and " + numWorkers);
+    }
+    this.source = source;
+    this.seed = seed;
+    this.depth = depth;
+    this.numWorkers = numWorkers;
+    this.workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory(){
+      private int count = 0;
+      @Override
+      public synchronized Thread newThread(Runnable r){
+        Thread thread = new Thread(r, "prefetch-" + count++);
+        // so that training that ends without shutdown() still exits
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    fill();
+  }
+
+  // keep depth minibatches of this epoch in flight
+  private void fill(){
+    while(this.pending.size() < this.depth && this.numSubmitted < this.source.numBatches()){
+      final Random rng = new Random(batchSeed(this.seed, this.epoch, this.numSubmitted));
+      this.pending.add(this.workers.submit(new Callable<DataSet>(){
+        @Override
+        public DataSet call(){
+          long start = System.nanoTime();
+          DataSet next = source.next(source.batch(), rng);
+          buildNanos.addAndGet(System.nanoTime() - start);
+          return next;
+        }
+      }));
+      this.numSubmitted++;
+    }
+  }
+
+  // spread (seed, epoch, batch) over the whole range, since Randoms with nearby seeds start out alike
+  static long batchSeed(long seed, int epoch, int batch){
+    long z = seed + 0x9E3779B97F4A7C15L * (((long) epoch << 32) + batch + 1);
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return this.numReturned < this.source.numBatches();
+  }
+
+  @Override
+  public DataSet next() {
+    long start = System.nanoTime();
+    if(this.lastReturned >= 0){
+      this.trainNanos += start - this.lastReturned;
+    }
+    if(!hasNext()){
+      throw new NoSuchElementException();
+    }
+    Future<DataSet> future = this.pending.poll();
+    if(!future.isDone()){
+      this.numWaited++;
+    }
+    DataSet next;
+    try{
+      next = future.get();
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }catch(ExecutionException e){
+      throw new RuntimeException(e.getCause());
+    }
+    this.numReturned++;
+    fill();
+    this.lastReturned = System.nanoTime();
+    this.waitNanos += this.lastReturned - start;
+    return next;
+  }
+
+  /**
+   * Only minibatches of {@link #batch()} examples are prefetched.
+   */
+  @Override
+  public DataSet next(int num) {
+    if(num != batch()){
+      throw new UnsupportedOperationException("Prefetched minibatches have " + batch() + " examples, not " + num);
+    }
+    return next();
+  }
+
+  /**
+   * Start the next epoch. Minibatches already built for this one are dropped.
+   */
+  @Override
+  public void reset() {
+    setPosition(this.epoch + 1, 0);
+  }
+
+  /**
+   * @return The number of the current epoch, counting the epochs started by reset() from 0.
+   */
+  public int getEpoch(){
+    return this.epoch;
+  }
+
+  /**
+   * @return The number of minibatches next() has returned in the current epoch.
+   */
+  public int getBatch(){
+    return this.numReturned;
+  }
+
+  /**
+   * Continue from a position given by {@link #getEpoch()} and {@link #getBatch()}, e.g. when training resumes from
+   * a checkpoint. The minibatches from there on are the ones the same seed gave the first time.
+   */
+  public void setPosition(int epoch, int batch){
+    for(Future<DataSet> future : this.pending){
+      future.cancel(false);
+    }
+    this.pending.clear();
+    this.epoch = epoch;
+    this.numReturned = batch;
+    this.numSubmitted = batch;
+    // whatever the caller does in between is not a training step
+    this.lastReturned = -1;
+    fill();
+  }
+
+  /**
+   * @return Seconds next() has spent waiting for minibatches to be built.
+   */
+  @Override
+  public double getWaitSeconds(){
+    return this.waitNanos / 1e9;
+  }
+
+  /**
+   * @return Seconds between the return of a minibatch and the next call to next(), i.e. training on it.
+   */
+  @Override
+  public double getTrainSeconds(){
+    return this.trainNanos / 1e9;
+  }
+
+  /**
+   * @return Seconds the workers have spent building minibatches, added up over the workers.
+   */
+  public double getBuildSeconds(){
+    return this.buildNanos.get() / 1e9;
+  }
+
+  public String getReport(){
+    return String.format("Prefetch (%d workers, depth %d): waited %.1fs for data (%d minibatches not ready), trained %.1fs, built minibatches for %.1fs",
+        this.numWorkers, this.depth, getWaitSeconds(), this.numWaited, getTrainSeconds(), getBuildSeconds());
+  }
+
+  /**
+   * Stop the worker threads.
+   */
+  public void shutdown(){
+    this.workers.shutdownNow();
+  }
+
+  @Override
+  public int totalExamples() {
+    return this.source.totalExamples();
+  }
+
+  @Override
+  public int inputColumns() {
+    return this.source.inputColumns();
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return this.source.totalOutcomes();
+  }
+
+  @Override
+  public int batch() {
+    return this.source.batch();
+  }
+
+  @Override
+  public int cursor() {
+    return this.numReturned * batch();
+  }
+
+  @Override
+  public int numExamples() {
+    return this.source.numExamples();
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    throw new UnsupportedOperationException("Not implemented");
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
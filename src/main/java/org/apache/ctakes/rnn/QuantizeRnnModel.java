@@ -0,0 +1,60 @@
+package org.apache.ctakes.rnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+
+/**
+ * Post-training quantization of a model written by TrainMimicRnn: saves an {@link RnnModelFile} with int8 weight
+ * matrices that RnnSentenceDetector can load in place of the float one. Reports the memory taken
+ * by the weights before and after, the largest rounding error of any weight, and how far the network output and
+ * memory cells drift over a run of random characters.
+ */
+public class QuantizeRnnModel {
+  static interface Options {
+    @Option
+    public File getModelFile();
+
+    @Option
+    public File getOutputFile();
+
+    @Option(defaultValue={"5000"})
+    public int getNumChars();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = CliFactory.parseArguments(Options.class, args);
+    RnnModelFile model = RnnModelFile.load(options.getModelFile());
+    LstmKernel kernel = model.getKernel();
+    LstmKernel quantized = kernel.quantize();
+    RnnModelFile.write(options.getOutputFile(), quantized, model.getVocabulary());
+
+    System.out.println(String.format("Weights: %d bytes as float, %d bytes as int8 (%.1fx smaller), max weight error %.3g",
+        kernel.getWeightBytes(), quantized.getWeightBytes(), (double) kernel.getWeightBytes() / quantized.getWeightBytes(),
+        quantized.maxWeightDifference(kernel)));
+
+    int memoryLayer = 1;
+    LstmKernel.State floatState = kernel.newState();
+    LstmKernel.State int8State = quantized.newState();
+    Random random = new Random(12345);
+    double maxOutputDiff = 0.0;
+    double maxMemoryDiff = 0.0;
+    for(int t = 0; t < options.getNumChars(); t++){
+      int charIndex = random.nextInt(kernel.getInputSize());
+      floatState.step(charIndex);
+      int8State.step(charIndex);
+      for(int i = 0; i < kernel.getOutputSize(); i++){
+        maxOutputDiff = Math.max(maxOutputDiff, Math.abs(floatState.getOutput()[i] - int8State.getOutput()[i]));
+      }
+      for(int i = 0; i < kernel.getLayerSize(memoryLayer); i++){
+        maxMemoryDiff = Math.max(maxMemoryDiff, Math.abs(floatState.getMemory(memoryLayer)[i] - int8State.getMemory(memoryLayer)[i]));
+      }
+    }
+    System.out.println(String.format("%d random chars: max output difference %.3g, max memory cell difference %.3g",
+        options.getNumChars(), maxOutputDiff, maxMemoryDiff));
+    System.out.println("Wrote " + options.getOutputFile() + "; use SentenceDetectorEvaluation -f RNN -q to compare F1.");
+  }
+}
@@ -0,0 +1,25 @@
+package org.apache.ctakes.rnn;
+
+import java.util.Random;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+
+/**
+ * A character iterator whose minibatches are random samples of its text. Besides the usual cursor-based next(),
+ * it can draw a minibatch from a caller's Random without touching its own state, which lets
+ * {@link PrefetchingDataSetIterator} build several minibatches at once and still get the same ones for the same seed.
+ */
+public interface RandomBatchIterator extends DataSetIterator {
+
+  /**
+   * Draw a minibatch using only the given Random. Safe to call from several threads at once, and does not move the
+   * cursor.
+   */
+  public DataSet next(int num, Random rng);
+
+  /**
+   * @return The number of minibatches of {@link #batch()} examples that next() returns before hasNext() is false.
+   */
+  public int numBatches();
+}
@@ -59,6 +59,10 @@ public class RnnDemo {
     int nSamplesToGenerate = 4;         //Number of samples to generate after each training epoch
     int nCharactersToSample = 300;        //Length of each sample to generate
     String generationInitialization = null;   //Optional character initialization; a random character is used if null
+    int prefetchDepth = 8;            //Minibatches built ahead of training
+    int prefetchWorkers = 2;          //Threads building them
+    int metricsInterval = 10;         //Minibatches between rows of the metrics file and printed scores
+    String metricsFilename = "rnn_demo_metrics.csv";
     String serializedModelFilename = "rnn_model.obj";
     // Above is Used to 'prime' the LSTM with a character sequence to continue/complete.
     // Initialization characters must all be in CharacterIterator.getMinimalCharacterSet() by default
@@ -68,6 +72,7 @@ public class RnnDemo {
     // our GravesLSTM network.
     CharacterIterator iter = getShakespeareIterator(miniBatchSize,exampleLength,examplesPerEpoch);
     int nOut = iter.totalOutcomes();
+    PrefetchingDataSetIterator batches = new PrefetchingDataSetIterator(iter, 718, prefetchDepth, prefetchWorkers);
     
     //Set up network configuration:
     MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
@@ -95,7 +100,9 @@ public class RnnDemo {
     
     MultiLayerNetwork net = new MultiLayerNetwork(conf);
     net.init();
-    net.setListeners(new ScoreIterationListener(1));
+    TrainingMetricsListener metrics = new TrainingMetricsListener(new File(metricsFilename), metricsInterval,
+        (long) miniBatchSize * exampleLength, batches);
+    net.setListeners(new ScoreIterationListener(metricsInterval), metrics);
     
     //Print the  number of parameters in the network (and for each layer)
     Layer[] layers = net.getLayers();
@@ -109,7 +116,7 @@ public class RnnDemo {
     
     //Do training, and then generate and print samples from network
     for( int i=0; i<numEpochs; i++ ){
-      net.fit(iter);
+      net.fit(batches);
       
       ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(new File(serializedModelFilename)));
       oos.writeObject(net);
@@ -117,6 +124,7 @@ public class RnnDemo {
       
       System.out.println("--------------------");
       System.out.println("Completed epoch " + i );
+      System.out.println(batches.getReport());
       System.out.println("Sampling characters from network given initialization \""+ (generationInitialization == null ? "" : generationInitialization) +"\"");
       String[] samples = sampleCharactersFromNetwork(generationInitialization,net,iter,rng,nCharactersToSample,nSamplesToGenerate);
       for( int j=0; j<samples.length; j++ ){
@@ -125,8 +133,10 @@ public class RnnDemo {
         System.out.println();
       }
       
-      iter.reset(); //Reset iterator for another epoch
+      batches.reset(); //Reset iterator for another epoch
     }
+    batches.shutdown();
+    metrics.close();
     
     System.out.println("\n\nExample complete");
   }
@@ -0,0 +1,319 @@
+package org.apache.ctakes.rnn;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.ctakes.rnn.WeightMatrix.BufferFloatMatrix;
+import org.apache.ctakes.rnn.WeightMatrix.Int8Matrix;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * The flat binary file an {@link LstmKernel} and its character vocabulary are saved to, in place of a serialized
+ * MultiLayerNetwork. Everything is little-endian:
+ * <pre>
+ * int magic ("CRNN"), int version, int weight type (0 float32, 1 int8)
+ * int input size, int output size, int number of LSTM layers, int size of each LSTM layer
+ * int vocabulary size, int out-of-vocabulary index (-1 for none; version 2 on), one UTF-16 char per vocabulary
+ *   entry in input index order, padded to 4 bytes
+ * per LSTM layer: input weights [in][4n], recurrent weights [n][4n], peepholes [n][3], bias [4n]
+ * output weights [n][out], output bias [out]
+ * </pre>
+ * Each weight matrix is row-major; for int8 it is one float scale per row followed by the int8 values, padded to 4
+ * bytes. Peepholes and biases are always float32.
+ * <p>
+ * The file is read with FileChannel.map and the weight matrices are used in place, so loading takes no longer than
+ * reading the header, and processes on one machine loading the same file share its pages in the page cache.
+ * A file is written under a temporary name and renamed into place, so processes that have the old one mapped keep
+ * reading the old contents.
+ */
+public class RnnModelFile {
+  public static final int MAGIC = 0x4E4E5243;
+  public static final int VERSION = 2;
+  private static final int WEIGHTS_FLOAT32 = 0;
+  private static final int WEIGHTS_INT8 = 1;
+
+  private final LstmKernel kernel;
+  private final CharVocabulary vocabulary;
+
+  private RnnModelFile(LstmKernel kernel, CharVocabulary vocabulary){
+    this.kernel = kernel;
+    this.vocabulary = vocabulary;
+  }
+
+  public LstmKernel getKernel(){
+    return this.kernel;
+  }
+
+  /**
+   * @return The characters the network was trained on.
+   */
+  public CharVocabulary getVocabulary(){
+    return this.vocabulary;
+  }
+
+  /**
+   * @return Whether the file starts like a model file of this format, as opposed to e.g. a serialized network.
+   */
+  public static boolean isModelFile(File file) throws IOException {
+    if(file.length() < 4){
+      return false;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try{
+      return Integer.reverseBytes(in.readInt()) == MAGIC;
+    }finally{
+      in.close();
+    }
+  }
+
+  /**
+   * Read a model file, or a serialized MultiLayerNetwork saved before there was a model file format, whose
+   * vocabulary is then taken to be LuceneReaderCharacterIterator's.
+   */
+  public static RnnModelFile load(File file) throws IOException {
+    if(isModelFile(file)){
+      return read(file);
+    }
+    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+    try{
+      MultiLayerNetwork net = (MultiLayerNetwork) ois.readObject();
+      CharVocabulary vocabulary = checkVocabulary(file, new LuceneReaderCharacterIterator().getVocabulary(), net);
+      return new RnnModelFile(LstmKernel.fromNetwork(net), vocabulary);
+    }catch(ClassNotFoundException e){
+      throw new IOException(e);
+    }finally{
+      ois.close();
+    }
+  }
+
+  /**
+   * Check that a network has one input and one output per character of a vocabulary.
+   * @return The vocabulary.
+   */
+  public static CharVocabulary checkVocabulary(File file, CharVocabulary vocabulary, MultiLayerNetwork net) throws IOException {
+    Layer[] layers = net.getLayers();
+    int inputSize = ((FeedForwardLayer) layers[0].conf().getLayer()).getNIn();
+    int outputSize = ((FeedForwardLayer) layers[layers.length-1].conf().getLayer()).getNOut();
+    if(vocabulary.size() != inputSize || vocabulary.size() != outputSize){
+      throw new IOException("The network in " + file + " has " + inputSize + " inputs and " + outputSize
+          + " outputs but its vocabulary has " + vocabulary.size() + " characters");
+    }
+    return vocabulary;
+  }
+
+  public static void write(File file, LstmKernel kernel, CharVocabulary vocabulary) throws IOException {
+    if(vocabulary.size() != kernel.getInputSize()){
+      throw new IllegalArgumentException("The vocabulary has " + vocabulary.size() + " characters but the network has "
+          + kernel.getInputSize() + " inputs");
+    }
+    int numLayers = kernel.getNumLstmLayers();
+    boolean int8 = kernel.isQuantized();
+    long size = 4 * (6 + numLayers) + pad(vocabulary.getEncodedSize());
+    for(int l = 0; l < numLayers; l++){
+      size += matrixBytes(kernel.getInputWeights(l)) + matrixBytes(kernel.getRecurrentWeights(l));
+      size += 4 * (kernel.getPeepholes(l).length + kernel.getBiases(l).length);
+    }
+    size += matrixBytes(kernel.getOutputWeights()) + 4 * kernel.getOutputBias().length;
+    if(size > Integer.MAX_VALUE){
+      throw new IllegalArgumentException("The network is too big for a model file");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(int8 ? WEIGHTS_INT8 : WEIGHTS_FLOAT32);
+    buffer.putInt(kernel.getInputSize()).putInt(kernel.getOutputSize()).putInt(numLayers);
+    for(int l = 0; l < numLayers; l++){
+      buffer.putInt(kernel.getLayerSize(l));
+    }
+    vocabulary.writeTo(buffer);
+    align(buffer);
+    for(int l = 0; l < numLayers; l++){
+      putMatrix(buffer, kernel.getInputWeights(l));
+      putMatrix(buffer, kernel.getRecurrentWeights(l));
+      putFloats(buffer, kernel.getPeepholes(l));
+      putFloats(buffer, kernel.getBiases(l));
+    }
+    putMatrix(buffer, kernel.getOutputWeights());
+    putFloats(buffer, kernel.getOutputBias());
+    buffer.flip();
+
+    // readers map the file, so it is never rewritten in place: write a temporary file and rename it over the old one
+    File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try{
+      FileChannel channel = out.getChannel();
+      while(buffer.hasRemaining()){
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }finally{
+      out.close();
+    }
+    try{
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }catch(AtomicMoveNotSupportedException e){
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  public static RnnModelFile read(File file) throws IOException {
+    MappedByteBuffer mapped;
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try{
+      // the mapping stays valid after the channel is closed
+      mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+    }finally{
+      in.close();
+    }
+    ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+    try{
+      if(buffer.getInt() != MAGIC){
+        throw new IOException(file + " is not an RNN model file");
+      }
+      int version = buffer.getInt();
+      if(version < 1 || version > VERSION){
+        throw new IOException(file + " is version " + version + " of the RNN model format, expected " + VERSION);
+      }
+      int weightType = buffer.getInt();
+      if(weightType != WEIGHTS_FLOAT32 && weightType != WEIGHTS_INT8){
+        throw new IOException(file + " has unknown weight type " + weightType);
+      }
+      boolean int8 = weightType == WEIGHTS_INT8;
+      int inputSize = buffer.getInt();
+      int outputSize = buffer.getInt();
+      int numLayers = buffer.getInt();
+      int[] layerSizes = new int[numLayers];
+      for(int l = 0; l < numLayers; l++){
+        layerSizes[l] = buffer.getInt();
+      }
+      CharVocabulary vocabulary;
+      try{
+        if(version >= 2){
+          vocabulary = CharVocabulary.readFrom(buffer);
+        }else{
+          // version 1 had no out-of-vocabulary index
+          char[] chars = new char[buffer.getInt()];
+          for(int i = 0; i < chars.length; i++){
+            chars[i] = buffer.getChar();
+          }
+          vocabulary = new CharVocabulary(chars);
+        }
+      }catch(IllegalArgumentException e){
+        throw new IOException(file + " has an invalid vocabulary", e);
+      }
+      align(buffer);
+      if(vocabulary.size() != inputSize || vocabulary.size() != outputSize){
+        throw new IOException(file + " has a vocabulary of " + vocabulary.size() + " characters for " + inputSize + " inputs and "
+            + outputSize + " outputs");
+      }
+
+      WeightMatrix[] inputWeights = new WeightMatrix[numLayers];
+      WeightMatrix[] recurrentWeights = new WeightMatrix[numLayers];
+      float[][] peepholes = new float[numLayers][];
+      float[][] biases = new float[numLayers][];
+      for(int l = 0; l < numLayers; l++){
+        int n = layerSizes[l];
+        inputWeights[l] = getMatrix(buffer, l == 0 ? inputSize : layerSizes[l-1], 4 * n, int8);
+        recurrentWeights[l] = getMatrix(buffer, n, 4 * n, int8);
+        peepholes[l] = getFloats(buffer, 3 * n);
+        biases[l] = getFloats(buffer, 4 * n);
+      }
+      WeightMatrix outputWeights = getMatrix(buffer, layerSizes[numLayers-1], outputSize, int8);
+      float[] outputBias = getFloats(buffer, outputSize);
+      if(buffer.hasRemaining()){
+        throw new IOException(file + " has " + buffer.remaining() + " bytes past the end of the model");
+      }
+      return new RnnModelFile(new LstmKernel(layerSizes, inputSize, inputWeights, recurrentWeights, peepholes, biases,
+          outputSize, outputWeights, outputBias), vocabulary);
+    }catch(BufferUnderflowException e){
+      throw new IOException(file + " is truncated", e);
+    }
+  }
+
+  private static long matrixBytes(WeightMatrix matrix){
+    long values = (long) matrix.rows * matrix.cols;
+    return matrix.isInt8() ? 4L * matrix.rows + pad(values) : 4L * values;
+  }
+
+  private static void putMatrix(ByteBuffer buffer, WeightMatrix matrix){
+    if(matrix.isInt8()){
+      Int8Matrix int8 = (Int8Matrix) matrix;
+      for(int r = 0; r < matrix.rows; r++){
+        buffer.putFloat(int8.getScale(r));
+      }
+      for(int r = 0; r < matrix.rows; r++){
+        for(int c = 0; c < matrix.cols; c++){
+          buffer.put(int8.getQuantized(r, c));
+        }
+      }
+      align(buffer);
+    }else{
+      for(int r = 0; r < matrix.rows; r++){
+        for(int c = 0; c < matrix.cols; c++){
+          buffer.putFloat(matrix.get(r, c));
+        }
+      }
+    }
+  }
+
+  // a view of the next rows x cols values of the buffer, which is then moved past them
+  private static WeightMatrix getMatrix(ByteBuffer buffer, int rows, int cols, boolean int8){
+    int count = rows * cols;
+    if(buffer.remaining() < (int8 ? 4 * rows + count : 4 * count)){
+      throw new BufferUnderflowException();
+    }
+    if(int8){
+      float[] scales = getFloats(buffer, rows);
+      ByteBuffer values = buffer.slice();
+      values.limit(count);
+      buffer.position(buffer.position() + count);
+      align(buffer);
+      return new Int8Matrix(values, scales, cols);
+    }
+    ByteBuffer values = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    values.limit(4 * count);
+    buffer.position(buffer.position() + 4 * count);
+    return new BufferFloatMatrix(values.asFloatBuffer(), rows, cols);
+  }
+
+  private static void putFloats(ByteBuffer buffer, float[] values){
+    for(float value : values){
+      buffer.putFloat(value);
+    }
+  }
+
+  // small arrays are copied to the heap
+  private static float[] getFloats(ByteBuffer buffer, int count){
+    float[] values = new float[count];
+    buffer.asFloatBuffer().get(values);
+    buffer.position(buffer.position() + 4 * count);
+    return values;
+  }
+
+  private static long pad(long bytes){
+    return (bytes + 3) & ~3L;
+  }
+
+  // skips to the next multiple of 4; a new buffer is all zeros, so this pads when writing too
+  private static void align(ByteBuffer buffer){
+    int aligned = (int) pad(buffer.position());
+    if(aligned > buffer.limit()){
+      throw new BufferUnderflowException();
+    }
+    buffer.position(aligned);
+  }
+}
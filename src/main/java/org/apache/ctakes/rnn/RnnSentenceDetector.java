@@ -5,11 +5,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.ctakes.core.cleartk.ae.SentenceDetectorAnnotator;
+import org.apache.ctakes.core.cleartk.ml.CompiledLinearScorer;
+import org.apache.ctakes.core.cleartk.ml.SharedJarClassifierFactory;
+import org.apache.ctakes.core.cleartk.ml.SharedModelRegistry;
 import org.apache.ctakes.typesystem.type.textspan.Segment;
 import org.apache.ctakes.typesystem.type.textspan.Sentence;
 import org.apache.log4j.Logger;
@@ -22,24 +27,72 @@ import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.cleartk.ml.CleartkAnnotator;
+import org.cleartk.ml.CleartkProcessingException;
 import org.cleartk.ml.DataWriter;
 import org.cleartk.ml.Feature;
 import org.cleartk.ml.Instance;
 import org.cleartk.ml.jar.DefaultDataWriterFactory;
 import org.cleartk.ml.jar.DirectoryDataWriterFactory;
 import org.cleartk.ml.jar.GenericJarClassifierFactory;
-import org.deeplearning4j.nn.layers.recurrent.BaseRecurrentLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
 
 public class RnnSentenceDetector extends CleartkAnnotator<String>{
+  public static final String DEFAULT_MODEL_FILE = "rnn_model.obj";
+  
+  // an RnnModelFile, or a serialized MultiLayerNetwork from before there was one; which one is told from the contents
   public static final String PARAM_MODEL_FILE = "ModelFile";
   @ConfigurationParameter(name=PARAM_MODEL_FILE,mandatory=true)
   private File modelFile = null;
   private MultiLayerNetwork rnn = null;
-  private Map<Character,Integer> charToIndexMap = null;
-  private int inputSize;
+  // the layer whose memory cells are features
+  private static final int MEMORY_LAYER = 1;
+  
+  // number of characters fed through the network at once
+  public static final String PARAM_CHUNK_SIZE = "ChunkSize";
+  @ConfigurationParameter(name=PARAM_CHUNK_SIZE,mandatory=false)
+  private int chunkSize = 1000;
+  
+  // number of segments fed through the network together as one padded minibatch
+  public static final String PARAM_BATCH_SIZE = "BatchSize";
+  @ConfigurationParameter(name=PARAM_BATCH_SIZE,mandatory=false)
+  private int batchSize = 16;
+  
+  // largest fraction of a minibatch's time steps that may be padding before a batch is closed early
+  public static final String PARAM_MAX_PADDING_WASTE = "MaxPaddingWaste";
+  @ConfigurationParameter(name=PARAM_MAX_PADDING_WASTE,mandatory=false)
+  private float maxPaddingWaste = 0.25f;
+  
+  // step through each segment with the pure-Java LstmKernel instead of running the ND4J network (inference only;
+  // training takes its features from the network, as existing models were). A model file has no ND4J network, so
+  // it always uses the kernel.
+  public static final String PARAM_JAVA_KERNEL = "UseJavaKernel";
+  @ConfigurationParameter(name=PARAM_JAVA_KERNEL,mandatory=false)
+  private boolean useJavaKernel = false;
+  private LstmKernel kernel = null;
+  private LstmKernel.State kernelState = null;
+  
+  // step through the segments with int8 weights, see LstmKernel.quantize() (inference only)
+  public static final String PARAM_QUANTIZE = "QuantizeWeights";
+  @ConfigurationParameter(name=PARAM_QUANTIZE,mandatory=false)
+  private boolean quantize = false;
+  
+  // score with the liblinear weights directly instead of building ClearTK features (inference only)
+  public static final String PARAM_COMPILED_SCORER = "UseCompiledScorer";
+  @ConfigurationParameter(name=PARAM_COMPILED_SCORER,mandatory=false)
+  private boolean useCompiledScorer = false;
+  private CompiledLinearScorer scorer = null;
+  // weights of the ACT_COL_ and MEM_IND_ features, one row of scores per activation
+  private double[] outputWeights = null;
+  private double[] memoryWeights = null;
+  private Map<String,double[]> prevOutcomeContribs = null;
+  private double[] scores = null;
+  // the ND4J path's activations for one character, reused
+  private float[] outputBuffer = null;
+  private float[] memoryBuffer = null;
+  
+  // the model's vocabulary, reading characters outside it as spaces
+  private CharVocabulary vocabulary = null;
   private Logger logger = Logger.getLogger(RnnSentenceDetector.class);
   
   @Override
@@ -47,139 +100,269 @@ public class RnnSentenceDetector extends CleartkAnnotator<String>{
       throws ResourceInitializationException {
     super.initialize(arg0);
     
-    ObjectInputStream ois;
     try {
-      ois = new ObjectInputStream(new FileInputStream(modelFile));
-      rnn = (MultiLayerNetwork) ois.readObject();
-      ois.close();
-    } catch (IOException | ClassNotFoundException e) {
+      // one copy of the network per JVM, see process() for how it is shared
+      Object model = loadModel(modelFile);
+      if(model instanceof MultiLayerNetwork){
+        rnn = (MultiLayerNetwork) model;
+      }
+      if(rnn == null || (!this.isTraining() && (useJavaKernel || quantize))){
+        // the kernel's weights are shared too, only its state belongs to this annotator
+        kernel = getKernel(modelFile, quantize && !this.isTraining());
+        kernelState = kernel.newState();
+      }
+      vocabulary = getVocabulary(modelFile);
+      if(vocabulary.getOovIndex() == CharVocabulary.NOT_FOUND){
+        vocabulary = vocabulary.withOov(' ');
+      }
+    } catch (IOException | IllegalArgumentException e) {
       e.printStackTrace();
       throw new ResourceInitializationException(e);
     }
-    charToIndexMap = new HashMap<>();
-    char[] validChars = new LuceneReaderCharacterIterator().getCharacterSet();
-    for( int i=0; i<validChars.length; i++ ) charToIndexMap.put(validChars[i], i);
-    inputSize = validChars.length;
+    
+    if(!this.isTraining() && useCompiledScorer){
+      String modelPath = (String) arg0.getConfigParameterValue(GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH);
+      try{
+        scorer = CompiledLinearScorer.getInstance(modelPath);
+        int memorySize = kernel != null ? kernel.getLayerSize(MEMORY_LAYER) :
+          ((FeedForwardLayer) rnn.getLayer(MEMORY_LAYER).conf().getLayer()).getNOut();
+        outputWeights = scorer.compileDense("ACT_COL_", vocabulary.size());
+        memoryWeights = scorer.compileDense("MEM_IND_", memorySize);
+        prevOutcomeContribs = new HashMap<>();
+        for(String outcome : new String[]{"B", "I", "O"}){
+          prevOutcomeContribs.put(outcome, scorer.compile(Arrays.asList(new Feature("PrevOutcome", outcome))));
+        }
+        scores = new double[scorer.getNumScores()];
+      }catch(IOException | CleartkProcessingException e){
+        throw new ResourceInitializationException(e);
+      }
+    }
   }
   
   @Override
   public void process(JCas jcas) throws AnalysisEngineProcessException {
 
 
-    for(Segment seg : JCasUtil.select(jcas, Segment.class)){
-      rnn.rnnClearPreviousState();
-
-      //Create input for initialization
-      String initialization = " ";
-      INDArray initializationInput = Nd4j.zeros(this.inputSize);
-      char[] init = initialization.toCharArray();
-      int idx = charToIndexMap.get(init[0]);
-      initializationInput.putScalar(idx, 1.0f);
-      rnn.rnnTimeStep(initializationInput);
-//      output = output.tensorAlongDimension(output.size(2)-1,1,0); //Gets the last time step output
-
-      // keep track of next sentence during training
-      List<Sentence> sents = JCasUtil.selectCovered(jcas, Sentence.class, seg);
-      int sentInd = 0;
-      Sentence nextSent = sents.size() > 0 ? sents.get(sentInd++) : null;
-      int startInd=0;
+    List<Segment> segs = new ArrayList<>(JCasUtil.select(jcas, Segment.class));
+    char[][] chars = new char[segs.size()][];
+    int[][] charIndices = new int[segs.size()][];
+    int[] lengths = new int[segs.size()];
+    int numOov = 0;
+    char oovChar = vocabulary.getChar(vocabulary.getOovIndex());
+    for(int i = 0; i < segs.size(); i++){
+      chars[i] = segs.get(i).getCoveredText().toCharArray();
+      charIndices[i] = new int[chars[i].length];
+      for(int ind = 0; ind < chars[i].length; ind++){
+        if(!vocabulary.contains(chars[i][ind])){
+          chars[i][ind] = oovChar;
+          numOov++;
+        }
+        charIndices[i][ind] = vocabulary.indexOf(chars[i][ind]);
+      }
+      lengths[i] = chars[i].length;
+    }
+    if(numOov > 0){
+      logger.debug("Read " + numOov + " characters outside the model's vocabulary as '" + oovChar + "'");
+    }
+    
+    if(kernel != null){
+      for(int i = 0; i < segs.size(); i++){
+        processSegment(jcas, segs.get(i), chars[i], charIndices[i], null);
+      }
+      return;
+    }
+    
+    // Segments go through the network a batch at a time, before any of them are decoded, since only PrevOutcome
+    // depends on earlier decisions. The network keeps its recurrent state in its layers, so annotators sharing it
+    // take turns.
+    int first = 0;
+    for(int batchSize : SegmentActivations.planBatches(lengths, this.batchSize, maxPaddingWaste)){
+      SegmentActivations[] activations;
+      synchronized(rnn){
+        activations = SegmentActivations.computeBatch(rnn, Arrays.copyOfRange(charIndices, first, first + batchSize),
+            vocabulary.indexOf(' '), vocabulary.size(), MEMORY_LAYER, chunkSize);
+      }
+      for(int i = 0; i < batchSize; i++){
+        processSegment(jcas, segs.get(first + i), chars[first + i], charIndices[first + i], activations[i]);
+      }
+      first += batchSize;
+    }
+  }
+  
+  // activations are null when the kernel steps through the segment as it is decoded
+  private void processSegment(JCas jcas, Segment seg, char[] chars, int[] charIndices, SegmentActivations activations) throws AnalysisEngineProcessException {
+    String segText = seg.getCoveredText();
+    if(activations == null){
+      kernelState.reset();
+      kernelState.step(vocabulary.indexOf(' '));
+    }
+    // keep track of next sentence during training
+    List<Sentence> sents = JCasUtil.selectCovered(jcas, Sentence.class, seg);
+    int sentInd = 0;
+    Sentence nextSent = sents.size() > 0 ? sents.get(sentInd++) : null;
+    int startInd=0;
+    
+    String prevOutcome = "O";
+    for(int ind = 0; ind < segText.length(); ind++){
+      char curChar = chars[ind];
       
-      String prevOutcome = "O";
-      String segText = seg.getCoveredText();
-      for(int ind = 0; ind < segText.length(); ind++){
-        List<Feature> feats = new ArrayList<>();
-        feats.add(new Feature("PrevOutcome", prevOutcome));
-        
-        char curChar = segText.charAt(ind);
-        
-        // put the character into the RNN and advance it one step:
-        INDArray nextInput = Nd4j.zeros(this.inputSize);
-        if(!charToIndexMap.containsKey(curChar)){
-          System.err.println("Found unexpected char in input: " + curChar);
-          curChar = ' ';
+      float[] output;
+      float[] memory;
+      if(activations == null){
+        kernelState.step(charIndices[ind]);
+        output = kernelState.getOutput();
+        memory = kernelState.getMemory(MEMORY_LAYER);
+      }else{
+        if(outputBuffer == null){
+          outputBuffer = new float[activations.getOutputSize()];
+          memoryBuffer = new float[activations.getMemorySize()];
         }
-        int curInd = charToIndexMap.get(curChar);
-        nextInput.putScalar(curInd, 1.0f);    //Prepare next time step input
-//        List<INDArray> activations = rnn.feedForward(nextInput);  //Do one time step of forward pass        
-//        INDArray internal = activations.get(1);
-        INDArray internal = rnn.rnnTimeStep(nextInput);
-        INDArray prevState = (INDArray) ((BaseRecurrentLayer)rnn.getLayer(1)).rnnGetPreviousState().get("prevMem");
-        for(int i = 0; i < internal.length(); i++){
-          
-          Double val = internal.getDouble(i);
-          if(Double.isNaN(val)){
-            val = 0.0;
-          }
-          feats.add(new Feature("ACT_COL_"+i, val));
+        output = activations.getOutputs(ind, outputBuffer);
+        memory = activations.getMemory(ind, memoryBuffer);
+      }
+      
+      // the compiled scorer reads the activations as they are, so features are only needed for ClearTK
+      List<Feature> feats = null;
+      if(scorer == null){
+        feats = new ArrayList<>();
+        feats.add(new Feature("PrevOutcome", prevOutcome));
+        addActivationFeatures(feats, "ACT_COL_", output);
+        addActivationFeatures(feats, "MEM_IND_", memory);
+      }
+      
+      // get the outcome and write/classify the example:
+      String outcome;
+      int casInd = seg.getBegin() + ind;
+      if(this.isTraining()){
+        // if ind pointer has passed nextSent pointer advance nextSent
+        while(nextSent != null && nextSent.getEnd() < casInd && sentInd < sents.size()){
+          nextSent = sents.get(sentInd++);
         }
-        
-        for(int i = 0; i < prevState.length(); i++){
-          Double val = prevState.getDouble(i);
-          if(Double.isNaN(val)){
-            val = 0.0;
-          }
-          feats.add(new Feature("MEM_IND_"+i, val));
+        if(nextSent == null){
+          outcome = "O";
+        }else if(casInd < nextSent.getBegin()){
+          // current index is prior to next sentence
+          outcome = "O";
+        }else if(prevOutcome.equals("O")){
+          // current index is in sentence but just after a character that was out of the sentence
+          outcome = "B";
+        }else{
+          // current index is in the middle of a sentence
+          outcome = "I";
         }
-        
-        // get the outcome and write/classify the example:
-        String outcome;
-        int casInd = seg.getBegin() + ind;
-        if(this.isTraining()){
-          // if ind pointer has passed nextSent pointer advance nextSent
-          while(nextSent != null && nextSent.getEnd() < casInd && sentInd < sents.size()){
-            nextSent = sents.get(sentInd++);
-          }
-          if(nextSent == null){
-            outcome = "O";
-          }else if(casInd < nextSent.getBegin()){
-            // current index is prior to next sentence
-            outcome = "O";
-          }else if(prevOutcome.equals("O")){
-            // current index is in sentence but just after a character that was out of the sentence
-            outcome = "B";
-          }else{
-            // current index is in the middle of a sentence
-            outcome = "I";
-          }
-          this.dataWriter.write(new Instance<String>(outcome, feats));
+        this.dataWriter.write(new Instance<String>(outcome, feats));
+      }else{
+        if(!prevOutcome.equals("O") && Character.isLetterOrDigit(curChar)){
+          outcome = "I";
         }else{
-          if(!prevOutcome.equals("O") && Character.isLetterOrDigit(curChar)){
-            outcome = "I";
+          if(scorer != null){
+            outcome = classifyCompiled(prevOutcome, output, memory);
           }else{
-            outcome = this.classifier.classify(feats);
-            if(outcome.equals("I") && prevOutcome.equals("O")){
-              logger.warn("Classifier predicted I after an O -- setting to B instead to preserve BIO tagging structure.");
-              outcome = "B";
-            }else if(outcome.equals("B")){
-              startInd = casInd;
-            }else if(outcome.equals("O") && 
-                (prevOutcome.equals("I") || prevOutcome.equals("B"))){
-              // just ended a sentence
-              int endInd = casInd;
-              if(ind > 1){                  
-                try{
-                  while(endInd > startInd && Character.isWhitespace(segText.charAt(endInd-seg.getBegin()-1))){
-                    endInd--;
-                  }
-                }catch(StringIndexOutOfBoundsException e){
-                  System.err.println("Got an illegal index into this string!");
+            // the classifier is shared with the annotators on other threads
+            synchronized(this.classifier){
+              outcome = this.classifier.classify(feats);
+            }
+          }
+          if(outcome.equals("I") && prevOutcome.equals("O")){
+            logger.warn("Classifier predicted I after an O -- setting to B instead to preserve BIO tagging structure.");
+            outcome = "B";
+          }else if(outcome.equals("B")){
+            startInd = casInd;
+          }else if(outcome.equals("O") && 
+              (prevOutcome.equals("I") || prevOutcome.equals("B"))){
+            // just ended a sentence
+            int endInd = casInd;
+            if(ind > 1){                  
+              try{
+                while(endInd > startInd && Character.isWhitespace(segText.charAt(endInd-seg.getBegin()-1))){
+                  endInd--;
                 }
-              }
-              if(endInd > startInd){
-                SentenceDetectorAnnotator.makeSentence(jcas, startInd, endInd);
+              }catch(StringIndexOutOfBoundsException e){
+                System.err.println("Got an illegal index into this string!");
               }
             }
+            if(endInd > startInd){
+              SentenceDetectorAnnotator.makeSentence(jcas, startInd, endInd);
+            }
           }
         }
-        prevOutcome = outcome;
+      }
+      prevOutcome = outcome;
  
+    }
+    if(!this.isTraining() && !prevOutcome.equals("O")){
+      // segment ended with a sentence
+      SentenceDetectorAnnotator.makeSentence(jcas, startInd, seg.getEnd());
+    }
+  }
+  
+  // an RnnModelFile, mapped rather than read, or a MultiLayerNetwork
+  private static Object loadModel(final File modelFile) throws IOException {
+    return SharedModelRegistry.get("rnn", modelFile.getAbsolutePath(), new Callable<Object>(){
+      @Override
+      public Object call() throws Exception {
+        if(RnnModelFile.isModelFile(modelFile)){
+          return RnnModelFile.read(modelFile);
+        }
+        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(modelFile));
+        Object model = ois.readObject();
+        ois.close();
+        return model;
       }
-      if(!this.isTraining() && !prevOutcome.equals("O")){
-        // segment ended with a sentence
-        SentenceDetectorAnnotator.makeSentence(jcas, startInd, seg.getEnd());
+    });
+  }
+  
+  /**
+   * @return The characters the model was trained on. A serialized network has no vocabulary of its own, so it gets
+   * LuceneReaderCharacterIterator's, as long as that fits the network.
+   */
+  public static CharVocabulary getVocabulary(File modelFile) throws IOException {
+    Object model = loadModel(modelFile);
+    if(model instanceof RnnModelFile){
+      return ((RnnModelFile) model).getVocabulary();
+    }
+    return RnnModelFile.checkVocabulary(modelFile, new LuceneReaderCharacterIterator().getVocabulary(), (MultiLayerNetwork) model);
+  }
+  
+  /**
+   * @return The kernel for a model file, shared with any annotators using the same one.
+   * @param quantized Whether to get int8 weights even if the file holds float ones.
+   */
+  public static LstmKernel getKernel(final File modelFile, boolean quantized) throws IOException {
+    final Object model = loadModel(modelFile);
+    final LstmKernel kernel = model instanceof RnnModelFile ? ((RnnModelFile) model).getKernel() :
+      SharedModelRegistry.get("lstmKernel", modelFile.getAbsolutePath(), new Callable<LstmKernel>(){
+        @Override
+        public LstmKernel call() throws Exception {
+          return LstmKernel.fromNetwork((MultiLayerNetwork) model);
+        }
+      });
+    if(!quantized){
+      return kernel;
+    }
+    return SharedModelRegistry.get("lstmKernelInt8", modelFile.getAbsolutePath(), new Callable<LstmKernel>(){
+      @Override
+      public LstmKernel call() throws Exception {
+        return kernel.quantize();
       }
+    });
+  }
+  
+  // Same decision as classifier.classify() of the features, with the activations dotted straight against their
+  // weights. NaN activations count as 0, as they do as features.
+  private String classifyCompiled(String prevOutcome, float[] output, float[] memory) {
+    scorer.clear(scores);
+    CompiledLinearScorer.add(prevOutcomeContribs.get(prevOutcome), scores);
+    CompiledLinearScorer.addDense(outputWeights, output, scores);
+    CompiledLinearScorer.addDense(memoryWeights, memory, scores);
+    return scorer.decide(scores);
+  }
+  
+  private static void addActivationFeatures(List<Feature> feats, String prefix, float[] values){
+    for(int i = 0; i < values.length; i++){
+      double val = Float.isNaN(values[i]) ? 0.0 : values[i];
+      feats.add(new Feature(prefix+i, val));
     }
-    
   }
   
   public static AnalysisEngineDescription getDataWriter(File outputDirectory, Class<? extends DataWriter<?>> class1) throws ResourceInitializationException {
@@ -192,7 +375,7 @@ public class RnnSentenceDetector extends CleartkAnnotator<String>{
         DefaultDataWriterFactory.PARAM_DATA_WRITER_CLASS_NAME,
         class1,
         RnnSentenceDetector.PARAM_MODEL_FILE,
-        "rnn_model.obj");
+        DEFAULT_MODEL_FILE);
   }
 
   
@@ -203,7 +386,9 @@ public class RnnSentenceDetector extends CleartkAnnotator<String>{
         false,
         GenericJarClassifierFactory.PARAM_CLASSIFIER_JAR_PATH,
         modelPath,
+        RnnSentenceDetector.PARAM_CLASSIFIER_FACTORY_CLASS_NAME,
+        SharedJarClassifierFactory.class.getName(),
         RnnSentenceDetector.PARAM_MODEL_FILE,
-        "rnn_model.obj");
+        DEFAULT_MODEL_FILE);
   }
 }
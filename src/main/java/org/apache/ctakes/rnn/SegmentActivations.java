@@ -0,0 +1,275 @@
+package org.apache.ctakes.rnn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.layers.recurrent.BaseRecurrentLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+/**
+ * The activations RnnSentenceDetector builds its features from, for every character of a segment: the network
+ * output and the memory cell state of one GravesLSTM layer after the character was fed in.
+ * <p>
+ * Rather than calling rnnTimeStep once per character, the characters are fed through the network as one sequence
+ * per chunk of chunkSize characters, layer by layer with each layer's recurrent state carried over between chunks.
+ * DL4J only keeps the memory cells of the last time step, so the memory cells of the feature layer are recomputed
+ * from its input and output sequences: both are known after the layer has run, so the gate pre-activations of the
+ * whole chunk are two matrix products and only the elementwise cell update is left to step through in order.
+ * <p>
+ * Several sequences can be run as one padded minibatch with {@link #computeBatch}.
+ * <p>
+ * This expects a network like the one TrainMimicRnn builds: GravesLSTM layers with tanh activations followed by
+ * non-recurrent layers, without input preprocessors.
+ */
+public class SegmentActivations {
+
+  private final int length;
+  private final int outputSize;
+  private final int memorySize;
+  // one row per character
+  private final double[] outputs;
+  private final double[] memory;
+
+  private SegmentActivations(int length, int outputSize, int memorySize){
+    this.length = length;
+    this.outputSize = outputSize;
+    this.memorySize = memorySize;
+    this.outputs = new double[length * outputSize];
+    this.memory = new double[length * memorySize];
+  }
+
+  public int length(){
+    return this.length;
+  }
+
+  public int getOutputSize(){
+    return this.outputSize;
+  }
+
+  public int getMemorySize(){
+    return this.memorySize;
+  }
+
+  public double getOutput(int t, int i){
+    return this.outputs[t * this.outputSize + i];
+  }
+
+  public double getMemory(int t, int i){
+    return this.memory[t * this.memorySize + i];
+  }
+
+  /**
+   * Copy the network output after character t into a buffer of the output size.
+   * @return The buffer.
+   */
+  public float[] getOutputs(int t, float[] buffer){
+    for(int i = 0; i < this.outputSize; i++){
+      buffer[i] = (float) this.outputs[t * this.outputSize + i];
+    }
+    return buffer;
+  }
+
+  /**
+   * Copy the memory cells after character t into a buffer of the memory size.
+   * @return The buffer.
+   */
+  public float[] getMemory(int t, float[] buffer){
+    for(int i = 0; i < this.memorySize; i++){
+      buffer[i] = (float) this.memory[t * this.memorySize + i];
+    }
+    return buffer;
+  }
+
+  /**
+   * Run a sequence of characters through the network, starting from a cleared state. Not thread-safe with respect
+   * to the network, whose layers hold the recurrent state.
+   * @param charIndices The input index of each character.
+   * @param initIndex The input index of a character fed in before the sequence to prime the network; its own
+   *  activations are not kept.
+   * @param memoryLayer The index of the GravesLSTM layer whose memory cells are wanted.
+   */
+  public static SegmentActivations compute(MultiLayerNetwork rnn, int[] charIndices, int initIndex, int inputSize,
+      int memoryLayer, int chunkSize){
+    return computeBatch(rnn, new int[][]{charIndices}, initIndex, inputSize, memoryLayer, chunkSize)[0];
+  }
+
+  /**
+   * Run several sequences (from one document or several) through the network together as one minibatch, so that
+   * the matrix products are large enough to be worth it. Sequences shorter than the longest are padded at the end
+   * with all-zero inputs; the network is unidirectional, so padding never affects the activations of real
+   * characters, and the activations of padded steps are dropped. See {@link #planBatches(int[], int, double)} for
+   * keeping the padding down.
+   */
+  public static SegmentActivations[] computeBatch(MultiLayerNetwork rnn, int[][] sequences, int initIndex, int inputSize,
+      int memoryLayer, int chunkSize){
+    Layer[] layers = rnn.getLayers();
+    int outputSize = ((FeedForwardLayer) layers[layers.length-1].conf().getLayer()).getNOut();
+    int memorySize = ((FeedForwardLayer) layers[memoryLayer].conf().getLayer()).getNOut();
+    int batchSize = sequences.length;
+    int maxLength = 0;
+    SegmentActivations[] activations = new SegmentActivations[batchSize];
+    for(int b = 0; b < batchSize; b++){
+      activations[b] = new SegmentActivations(sequences[b].length, outputSize, memorySize);
+      maxLength = Math.max(maxLength, sequences[b].length);
+    }
+
+    // the memory layer's weights, sliced and copied once for the whole batch
+    LayerWeights memoryWeights = new LayerWeights(layers[memoryLayer], memorySize);
+
+    rnn.rnnClearPreviousState();
+    // the priming character is position -1 of every sequence
+    for(int chunkStart = -1; chunkStart < maxLength; chunkStart += chunkSize){
+      int chunkEnd = Math.min(chunkStart + chunkSize, maxLength);
+      int chunkLength = chunkEnd - chunkStart;
+      INDArray input = Nd4j.zeros(batchSize, inputSize, chunkLength);
+      for(int b = 0; b < batchSize; b++){
+        // steps past the end of a sequence are left all zero
+        for(int t = 0; t < chunkLength && chunkStart + t < sequences[b].length; t++){
+          int pos = chunkStart + t;
+          input.putScalar(new int[]{b, pos < 0 ? initIndex : sequences[b][pos], t}, 1.0);
+        }
+      }
+
+      INDArray act = input;
+      for(int l = 0; l < layers.length; l++){
+        INDArray layerInput = act;
+        INDArray prevAct = null;
+        INDArray prevMem = null;
+        if(l == memoryLayer){
+          Map<String,INDArray> state = ((BaseRecurrentLayer<?>) layers[l]).rnnGetPreviousState();
+          if(state != null){
+            prevAct = state.get("prevAct");
+            prevMem = state.get("prevMem");
+          }
+        }
+        if(layers[l] instanceof BaseRecurrentLayer){
+          act = ((BaseRecurrentLayer<?>) layers[l]).rnnTimeStep(act);
+        }else{
+          act = layers[l].activate(act, false);
+        }
+        if(l == memoryLayer){
+          for(int b = 0; b < batchSize; b++){
+            activations[b].computeMemoryCells(memoryWeights, layerInput.tensorAlongDimension(b, 1, 2), act.tensorAlongDimension(b, 1, 2),
+                prevAct == null ? null : prevAct.getRow(b), prevMem == null ? null : prevMem.getRow(b), chunkStart);
+          }
+        }
+      }
+
+      int skip = chunkStart < 0 ? 1 : 0;
+      for(int b = 0; b < batchSize; b++){
+        int keep = Math.min(chunkEnd, sequences[b].length) - (chunkStart + skip);
+        if(keep > 0){
+          double[] output = toRowMajor(act.tensorAlongDimension(b, 1, 2).transpose());
+          System.arraycopy(output, skip * outputSize, activations[b].outputs, (chunkStart + skip) * outputSize, keep * outputSize);
+        }
+      }
+    }
+    return activations;
+  }
+
+  /**
+   * Split a run of sequences into consecutive batches of at most batchSize sequences. A batch is also closed early
+   * when adding the next sequence would make more than maxPaddingWaste of the batch's time steps padding.
+   * @return The number of sequences in each batch, in order.
+   */
+  public static List<Integer> planBatches(int[] lengths, int batchSize, double maxPaddingWaste){
+    List<Integer> batches = new ArrayList<>();
+    int count = 0;
+    long total = 0;
+    int maxLength = 0;
+    for(int length : lengths){
+      if(count > 0){
+        int newMax = Math.max(maxLength, length);
+        double waste = 1.0 - (double) (total + length) / ((long) newMax * (count + 1));
+        if(count == batchSize || waste > maxPaddingWaste){
+          batches.add(count);
+          count = 0;
+          total = 0;
+          maxLength = 0;
+        }
+      }
+      count++;
+      total += length;
+      maxLength = Math.max(maxLength, length);
+    }
+    if(count > 0){
+      batches.add(count);
+    }
+    return batches;
+  }
+
+  // The weights of the memory layer the cell update needs. The recurrent weights hold the gate weights in their
+  // first 4n columns and the peephole weights in the last three.
+  private static class LayerWeights {
+    private final INDArray inputWeights;
+    private final INDArray bias;
+    private final INDArray recurrentWeightsIFOG;
+    private final float[] peepholes;
+
+    LayerWeights(Layer layer, int n){
+      INDArray recurrentWeights = layer.getParam("RW");
+      this.inputWeights = layer.getParam("W");
+      this.bias = layer.getParam("b");
+      this.recurrentWeightsIFOG = recurrentWeights.get(NDArrayIndex.all(), NDArrayIndex.interval(0, 4*n)).dup();
+      this.peepholes = LstmKernel.toFloats(toRowMajor(recurrentWeights.get(NDArrayIndex.all(), NDArrayIndex.interval(4*n, 4*n+3))));
+    }
+  }
+
+  // GravesLSTM's cell update (LstmKernel.updateCells) over pre-activations computed for the whole chunk at once.
+  // input and output are [size, time] matrices for one sequence of the batch.
+  private void computeMemoryCells(LayerWeights weights, INDArray input, INDArray output, INDArray prevAct, INDArray prevMem, int chunkStart){
+    int n = this.memorySize;
+    int chunkLength = Math.min(input.columns(), this.length - chunkStart);
+    if(chunkLength <= 0){
+      return;
+    }
+
+    // pre-activations from the input and bias at step t, and from the output at step t-1
+    double[] inputPart = toRowMajor(input.transpose().mmul(weights.inputWeights).addiRowVector(weights.bias));
+    double[] recurrentPart = toRowMajor(output.transpose().mmul(weights.recurrentWeightsIFOG));
+    double[] initialPart = prevAct == null ? new double[4*n] : toRowMajor(prevAct.mmul(weights.recurrentWeightsIFOG));
+
+    float[] cells = prevMem == null ? new float[n] : LstmKernel.toFloats(toRowMajor(prevMem));
+    float[] z = new float[4*n];
+    for(int t = 0; t < chunkLength; t++){
+      int in = t * 4 * n;
+      int rec = t == 0 ? 0 : (t-1) * 4 * n;
+      double[] recurrent = t == 0 ? initialPart : recurrentPart;
+      for(int k = 0; k < 4*n; k++){
+        z[k] = (float) (inputPart[in + k] + recurrent[rec + k]);
+      }
+      // the layer output is already known, only the cells are wanted
+      LstmKernel.updateCells(z, weights.peepholes, cells, null);
+      int pos = chunkStart + t;
+      if(pos >= 0){
+        for(int j = 0; j < n; j++){
+          this.memory[pos * n + j] = cells[j];
+        }
+      }
+    }
+  }
+
+  // row-major copy of a matrix (or a view of one), read through its offset and strides so that only the view's
+  // own elements are touched, not the rest of the buffer it shares
+  static double[] toRowMajor(INDArray matrix){
+    int rows = matrix.rows();
+    int cols = matrix.columns();
+    int[] stride = matrix.stride();
+    int offset = matrix.offset();
+    DataBuffer data = matrix.data();
+    double[] values = new double[rows * cols];
+    for(int r = 0; r < rows; r++){
+      for(int c = 0; c < cols; c++){
+        values[r * cols + c] = data.getDouble(offset + r * stride[0] + c * stride[1]);
+      }
+    }
+    return values;
+  }
+}
@@ -2,12 +2,11 @@ package org.apache.ctakes.rnn;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Random;
 
 import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Model;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
@@ -17,54 +16,152 @@ import org.deeplearning4j.nn.conf.layers.GravesLSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.api.IterationListener;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
 
+import com.lexicalscope.jewel.cli.CliFactory;
+import com.lexicalscope.jewel.cli.Option;
+import com.lexicalscope.jewel.cli.Unparsed;
+
 public class TrainMimicRnn {
+  static interface Options {
+    @Unparsed(name="input", description="Lucene index, or a corpus written by ExportLuceneCorpus or EncodeCorpus")
+    public File getInput();
+
+    @Option(defaultToNull=true, description="Checkpoint to resume from, or a checkpoint directory to resume from its newest")
+    public File getResume();
+
+    @Option(defaultValue={"checkpoints"})
+    public File getCheckpointDir();
+
+    @Option(defaultValue={"3"}, description="Number of checkpoints to keep")
+    public int getKeepCheckpoints();
+
+    @Option(defaultValue={"0"}, description="Also checkpoint every this many minibatches (with several workers, at the next averaging round); 0 for only after each epoch")
+    public int getCheckpointEvery();
+
+    @Option(defaultValue={"1"}, description="Number of network replicas to train at once (see DataParallelTrainer)")
+    public int getWorkers();
+
+    @Option(defaultValue={"10"}, description="Minibatches between parameter averages when training with several workers")
+    public int getAveragingFrequency();
+
+    @Option(defaultValue={"training_metrics.csv"}, description="CSV, or JSON if it ends in .json, of training speed, loss and memory")
+    public File getMetricsFile();
+
+    @Option(defaultValue={"10"}, description="Minibatches between rows of the metrics file and printed scores")
+    public int getMetricsInterval();
+  }
 
   public static void main(String[] args) throws FileNotFoundException, IOException {
+    Options options = CliFactory.parseArguments(Options.class, args);
     int lstmLayerSize = 200;          //Number of units in each GravesLSTM layer
     int numEpochs = 50;             //Total number of training + sample generation epochs
     int nSamplesToGenerate = 4;         //Number of samples to generate after each training epoch
     int nCharactersToSample = 300;        //Length of each sample to generate
     String generationInitialization = null;   //Optional character initialization; a random character is used if null
+    int prefetchDepth = 8;            //Minibatches built ahead of training
+    int prefetchWorkers = 2;          //Threads building them
     String serializedModelFilename = "mimic_rnn_model_n=200.obj";
+    String modelFilename = "mimic_rnn_model_n=200.rnn";   //RnnModelFile to give RnnSentenceDetector as its ModelFile
     // Above is Used to 'prime' the LSTM with a character sequence to continue/complete.
     // Initialization characters must all be in CharacterIterator.getMinimalCharacterSet() by default
     Random rng = new Random(12345);
 
-    LuceneReaderCharacterIterator iter = new LuceneReaderCharacterIterator(args[0]);
-    int nOut = iter.totalOutcomes();
-    
-    //Set up network configuration:
-    MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
-      .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(1)
-      .learningRate(0.1)
-      .rmsDecay(0.95)
-      .seed(12345)
-      .regularization(true)
-      .l2(0.001)
-      .list(3)
-      .layer(0, new GravesLSTM.Builder().nIn(iter.inputColumns()).nOut(lstmLayerSize)
-          .updater(Updater.RMSPROP)
-          .activation("tanh").weightInit(WeightInit.DISTRIBUTION)
-          .dist(new UniformDistribution(-0.08, 0.08)).build())
-      .layer(1, new GravesLSTM.Builder().nIn(lstmLayerSize).nOut(lstmLayerSize)
-          .updater(Updater.RMSPROP)
-          .activation("tanh").weightInit(WeightInit.DISTRIBUTION)
-          .dist(new UniformDistribution(-0.08, 0.08)).build())
-      .layer(2, new RnnOutputLayer.Builder(LossFunction.MCXENT).activation("softmax")        //MCXENT + softmax for classification
-          .updater(Updater.RMSPROP)
-          .nIn(lstmLayerSize).nOut(nOut).weightInit(WeightInit.DISTRIBUTION)
-          .dist(new UniformDistribution(-0.08, 0.08)).build())
-      .pretrain(false).backprop(true)
-      .build();
+    CharacterIterator_ImplBase iter = getIterator(options.getInput());
+    MultiLayerConfiguration conf = getConfiguration(iter.inputColumns(), iter.totalOutcomes(), lstmLayerSize);
     
-    MultiLayerNetwork net = new MultiLayerNetwork(conf);
+    final MultiLayerNetwork net = new MultiLayerNetwork(conf);
     net.init();
-    net.setListeners(new ScoreIterationListener(1));
+    final TrainingCheckpointer checkpointer = new TrainingCheckpointer(options.getCheckpointDir(), options.getKeepCheckpoints());
+    // the epoch-end checkpoints also write the models, on the checkpointer's thread
+    checkpointer.setModelFiles(new File(serializedModelFilename), new File(modelFilename), iter.getVocabulary().withOov(' '));
+    final int checkpointEvery = options.getCheckpointEvery();
+    int startEpoch = 0;
+    int startBatch = 0;
+    TrainingCheckpointer.Checkpoint checkpoint = null;
+    if(options.getResume() != null){
+      File checkpointFile = options.getResume().isDirectory() ? TrainingCheckpointer.latest(options.getResume()) : options.getResume();
+      if(checkpointFile == null){
+        throw new IOException("No checkpoints in " + options.getResume());
+      }
+      checkpoint = TrainingCheckpointer.read(checkpointFile);
+      checkpoint.restore(net);
+      startEpoch = checkpoint.getEpoch();
+      startBatch = checkpoint.getBatch();
+      System.out.println("Resuming from " + checkpointFile + " at epoch " + startEpoch + ", minibatch " + startBatch);
+      // the minibatch of a checkpoint is counted per worker, so it only means the same thing with as many workers
+      if(startBatch > 0 && checkpoint.getNumUpdaters() != options.getWorkers()){
+        System.out.println("The checkpoint was taken with " + checkpoint.getNumUpdaters() + " workers, not "
+            + options.getWorkers() + "; starting epoch " + startEpoch + " over");
+        startBatch = 0;
+      }
+    }
+    // with several workers the replicas are copied from the (restored) network and fed by their own iterators
+    final DataParallelTrainer trainer = options.getWorkers() > 1 ?
+        new DataParallelTrainer(net, iter, options.getWorkers(), options.getAveragingFrequency(), 718, prefetchDepth) : null;
+    final PrefetchingDataSetIterator batches = trainer == null ?
+        new PrefetchingDataSetIterator(iter, 718, prefetchDepth, prefetchWorkers) : null;
+    // with several workers the first replica's iterations stand for all of them, and the times are averaged over them
+    TrainingMetricsListener metrics = new TrainingMetricsListener(options.getMetricsFile(), options.getMetricsInterval(),
+        (long) iter.batch() * CharacterIterator_ImplBase.EXAMPLE_SIZE * options.getWorkers(),
+        trainer != null ? trainer : (TrainingMetricsListener.TrainingTimes) batches);
+    if(trainer != null){
+      if(checkpoint != null){
+        // the other replicas get their own updater state back
+        checkpoint.restore(trainer.getReplicas());
+        if(checkpoint.getNumUpdaters() != trainer.getNumWorkers()){
+          System.out.println("The checkpoint has the updater state of " + checkpoint.getNumUpdaters() + " workers, not "
+              + trainer.getNumWorkers() + "; the extra replicas start from the first one's");
+        }
+      }
+      net.setListeners(new ScoreIterationListener(options.getMetricsInterval()), metrics);
+      if(checkpointEvery > 0){
+        // the replicas only agree between averaging rounds, so checkpoints are taken at the first round boundary
+        // after every checkpointEvery minibatches of all the workers together
+        trainer.setRoundListener(new DataParallelTrainer.RoundListener(){
+          @Override
+          public void roundDone(int epoch, int fromBatch, int toBatch){
+            int workers = trainer.getNumWorkers();
+            if(toBatch * workers / checkpointEvery > fromBatch * workers / checkpointEvery){
+              try{
+                checkpointer.save(trainer.getReplicas(), epoch, toBatch);
+              }catch(IOException e){
+                throw new RuntimeException(e);
+              }
+            }
+          }
+        });
+      }
+    }else{
+      batches.setPosition(startEpoch, startBatch);
+      net.setListeners(new ScoreIterationListener(options.getMetricsInterval()), metrics, new IterationListener(){
+        private static final long serialVersionUID = 1L;
+        private boolean invoked = false;
+        @Override
+        public boolean invoked(){
+          return invoked;
+        }
+        @Override
+        public void invoke(){
+          invoked = true;
+        }
+        @Override
+        public void iterationDone(Model model, int iteration){
+          // the last minibatch of an epoch is checkpointed after the epoch
+          if(checkpointEvery > 0 && batches.getBatch() % checkpointEvery == 0 && batches.hasNext()){
+            try{
+              checkpointer.save(net, batches.getEpoch(), batches.getBatch());
+            }catch(IOException e){
+              throw new RuntimeException(e);
+            }
+          }
+        }
+      });
+    }
     Layer[] layers = net.getLayers();
     int totalNumParams = 0;
     for( int i=0; i<layers.length; i++ ){
@@ -75,15 +172,22 @@ public class TrainMimicRnn {
     System.out.println("Total number of network parameters: " + totalNumParams);
     
     //Do training, and then generate and print samples from network
-    for( int i=0; i<numEpochs; i++ ){
-      net.fit(iter);
-      
-      ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(new File(serializedModelFilename)));
-      oos.writeObject(net);
-      oos.close();
+    for( int i=startEpoch; i<numEpochs; i++ ){
+      if(trainer != null){
+        trainer.fitEpoch(i, i == startEpoch ? startBatch : 0);
+      }else{
+        net.fit(batches);
+        batches.reset(); //Reset iterator for another epoch
+      }
+      if(trainer != null){
+        checkpointer.save(trainer.getReplicas(), i + 1, 0);
+      }else{
+        checkpointer.save(net, i + 1, 0);
+      }
       
       System.out.println("--------------------");
       System.out.println("Completed epoch " + i );
+      System.out.println(trainer != null ? trainer.getReport() : batches.getReport());
       System.out.println("Sampling characters from network given initialization \""+ (generationInitialization == null ? "" : generationInitialization) +"\"");
       String[] samples = sampleCharactersFromNetwork(generationInitialization,net,iter,rng,nCharactersToSample,nSamplesToGenerate);
       for( int j=0; j<samples.length; j++ ){
@@ -91,14 +195,63 @@ public class TrainMimicRnn {
         System.out.println(samples[j]);
         System.out.println();
       }
-      
-      iter.reset(); //Reset iterator for another epoch
     }
+    if(trainer != null){
+      trainer.shutdown();
+    }else{
+      batches.shutdown();
+    }
+    checkpointer.close();
+    metrics.close();
     
     System.out.println("\n\nTraining complete");
     
   }
 
+  /**
+   * @return An iterator over a Lucene index or a corpus written by ExportLuceneCorpus or EncodeCorpus.
+   */
+  public static CharacterIterator_ImplBase getIterator(File input) throws IOException {
+    CharacterIterator_ImplBase iter;
+    if(EncodedCorpus.isEncodedCorpus(input)){
+      EncodedCorpus corpus = EncodedCorpus.read(input);
+      if(corpus.getNumDocs() > 0){
+        iter = new EncodedDocumentIterator(corpus);
+      }else{
+        iter = new EncodedCorpusIterator(corpus, CharacterIterator_ImplBase.MINI_BATCH_SIZE * 500, new Random(718), true);
+      }
+    }else{
+      iter = new LuceneReaderCharacterIterator(input.getPath());
+    }
+    return iter;
+  }
+
+  public static MultiLayerConfiguration getConfiguration(int nIn, int nOut, int lstmLayerSize){
+    //Set up network configuration:
+    return new NeuralNetConfiguration.Builder()
+      .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).iterations(1)
+      .learningRate(0.1)
+      .rmsDecay(0.95)
+      .seed(12345)
+      .regularization(true)
+      .l2(0.001)
+      .list(3)
+      .layer(0, new GravesLSTM.Builder().nIn(nIn).nOut(lstmLayerSize)
+          .updater(Updater.RMSPROP)
+          .activation("tanh").weightInit(WeightInit.DISTRIBUTION)
+          .dist(new UniformDistribution(-0.08, 0.08)).build())
+      .layer(1, new GravesLSTM.Builder().nIn(lstmLayerSize).nOut(lstmLayerSize)
+          .updater(Updater.RMSPROP)
+          .activation("tanh").weightInit(WeightInit.DISTRIBUTION)
+          .dist(new UniformDistribution(-0.08, 0.08)).build())
+      .layer(2, new RnnOutputLayer.Builder(LossFunction.MCXENT).activation("softmax")        //MCXENT + softmax for classification
+          .updater(Updater.RMSPROP)
+          .nIn(lstmLayerSize).nOut(nOut).weightInit(WeightInit.DISTRIBUTION)
+          .dist(new UniformDistribution(-0.08, 0.08)).build())
+      .pretrain(false).backprop(true)
+      .build();
+  }
+
   /** Generate a sample from the network, given an (optional, possibly null) initialization. Initialization
    * can be used to 'prime' the RNN with a sequence you want to extend/continue.<br>
    * Note that the initalization is used for all samples
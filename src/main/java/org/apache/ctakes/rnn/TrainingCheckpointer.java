@@ -0,0 +1,325 @@
+package org.apache.ctakes.rnn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Saves the state of a TrainMimicRnn run so that it can resume where it stopped: the network parameters, the
+ * updater state (the RMSProp averages) of every replica of a DataParallelTrainer, or of the one network, and the
+ * position of the PrefetchingDataSetIterator. The state is copied on
+ * the training thread and written on a background thread, so training only stops for the copy. Each checkpoint is
+ * written to a temporary file, synced and renamed into place, so a crash leaves the previous checkpoints intact,
+ * and only the newest <code>keep</code> are kept.
+ * <p>
+ * With {@link #setModelFiles}, a checkpoint taken at the end of an epoch (minibatch 0 of the next) also writes the
+ * network as the run's results: serialized, and as an RnnModelFile. They are copied with the checkpoint and
+ * replaced atomically the same way.
+ * <p>
+ * A checkpoint file is a DataOutputStream with an int magic ("CKPT"), int version, int epoch, int minibatch, the
+ * parameters as written by Nd4j.write, the number of updaters (version 2 on; version 1 has one) and the length and
+ * bytes of each serialized updater.
+ */
+public class TrainingCheckpointer {
+  public static final int MAGIC = 0x54504B43;
+  public static final int VERSION = 2;
+  private static final String PREFIX = "checkpoint-";
+  private static final String SUFFIX = ".ckpt";
+
+  private final File directory;
+  private final int keep;
+  private final ExecutorService writer;
+  private Future<File> lastWrite = null;
+  private File serializedModelFile = null;
+  private File modelFile = null;
+  private CharVocabulary vocabulary = null;
+
+  public TrainingCheckpointer(File directory, int keep){
+    if(keep < 1){
+      throw new IllegalArgumentException("Need to keep at least 1 checkpoint, not " + keep);
+    }
+    this.directory = directory;
+    this.keep = keep;
+    this.writer = Executors.newSingleThreadExecutor(new ThreadFactory(){
+      @Override
+      public Thread newThread(Runnable r){
+        return new Thread(r, "checkpoint-writer");
+      }
+    });
+  }
+
+  /**
+   * Also write the network at the end of each epoch, serialized to serializedModelFile and as an RnnModelFile with the
+   * given vocabulary to modelFile.
+   */
+  public void setModelFiles(File serializedModelFile, File modelFile, CharVocabulary vocabulary){
+    this.serializedModelFile = serializedModelFile;
+    this.modelFile = modelFile;
+    this.vocabulary = vocabulary;
+  }
+
+  /**
+   * Copy the state of the network and start writing it. Waits for the previous checkpoint to be written first, so
+   * at most one copy is waiting at a time.
+   *
+   * @param epoch The epoch training continues with.
+   * @param batch The minibatch of that epoch training continues with.
+   */
+  public void save(MultiLayerNetwork net, int epoch, int batch) throws IOException {
+    save(new MultiLayerNetwork[]{net}, epoch, batch);
+  }
+
+  /**
+   * Copy the state of the replicas of a DataParallelTrainer, which have the same parameters after averaging, and
+   * start writing it. The parameters are taken from the first replica and the updater state from each.
+   *
+   * @see DataParallelTrainer#getReplicas()
+   */
+  public void save(MultiLayerNetwork[] replicas, final int epoch, final int batch) throws IOException {
+    final INDArray params = replicas[0].params().dup();
+    final byte[][] updaters = new byte[replicas.length][];
+    for(int i = 0; i < replicas.length; i++){
+      updaters[i] = serialize(replicas[i].getUpdater());
+    }
+    final boolean writeModels = batch == 0 && this.modelFile != null;
+    final byte[] serializedModel = writeModels ? serialize(replicas[0]) : null;
+    final LstmKernel kernel = writeModels ? LstmKernel.fromNetwork(replicas[0]) : null;
+    waitForWrite();
+    this.lastWrite = this.writer.submit(new Callable<File>(){
+      @Override
+      public File call() throws IOException {
+        File file = new File(directory, String.format("%s%05d-%07d%s", PREFIX, epoch, batch, SUFFIX));
+        write(file, epoch, batch, params, updaters);
+        prune();
+        if(writeModels){
+          writeBytes(serializedModelFile, serializedModel);
+          RnnModelFile.write(modelFile, kernel, vocabulary);
+        }
+        return file;
+      }
+    });
+  }
+
+  /**
+   * Wait for the last checkpoint to be written.
+   *
+   * @return The file it was written to, or null if there was none.
+   */
+  public File waitForWrite() throws IOException {
+    if(this.lastWrite == null){
+      return null;
+    }
+    try{
+      return this.lastWrite.get();
+    }catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }catch(ExecutionException e){
+      throw new IOException("Writing the checkpoint failed", e.getCause());
+    }finally{
+      this.lastWrite = null;
+    }
+  }
+
+  /**
+   * Wait for the last checkpoint to be written and stop the writer thread.
+   */
+  public void close() throws IOException {
+    try{
+      waitForWrite();
+    }finally{
+      this.writer.shutdown();
+    }
+  }
+
+  private void write(File file, int epoch, int batch, INDArray params, byte[][] updaters) throws IOException {
+    this.directory.mkdirs();
+    File tmp = new File(this.directory, file.getName() + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(tmp);
+    try{
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(epoch);
+      out.writeInt(batch);
+      Nd4j.write(params, out);
+      out.writeInt(updaters.length);
+      for(byte[] updater : updaters){
+        out.writeInt(updater.length);
+        out.write(updater);
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    }finally{
+      fileOut.close();
+    }
+    moveIntoPlace(tmp, file);
+  }
+
+  private static void writeBytes(File file, byte[] bytes) throws IOException {
+    File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(tmp);
+    try{
+      fileOut.write(bytes);
+      fileOut.getFD().sync();
+    }finally{
+      fileOut.close();
+    }
+    moveIntoPlace(tmp, file);
+  }
+
+  private static void moveIntoPlace(File tmp, File file) throws IOException {
+    try{
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }catch(AtomicMoveNotSupportedException e){
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void prune(){
+    File[] files = list(this.directory);
+    for(int i = 0; i < files.length - this.keep; i++){
+      files[i].delete();
+    }
+  }
+
+  // the checkpoints in a directory, oldest first
+  private static File[] list(File directory){
+    File[] files = directory.listFiles(new FilenameFilter(){
+      @Override
+      public boolean accept(File dir, String name){
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+      }
+    });
+    if(files == null){
+      return new File[0];
+    }
+    // the zero-padded epoch and minibatch make name order the order they were written in
+    Arrays.sort(files);
+    return files;
+  }
+
+  /**
+   * @return The newest checkpoint in a directory, or null if there is none.
+   */
+  public static File latest(File directory){
+    File[] files = list(directory);
+    return files.length == 0 ? null : files[files.length - 1];
+  }
+
+  public static Checkpoint read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try{
+      if(in.readInt() != MAGIC){
+        throw new IOException(file + " is not a training checkpoint");
+      }
+      int version = in.readInt();
+      if(version < 1 || version > VERSION){
+        throw new IOException(file + " is version " + version + " of the checkpoint format, expected " + VERSION);
+      }
+      int epoch = in.readInt();
+      int batch = in.readInt();
+      INDArray params = Nd4j.read(in);
+      byte[][] updaters = new byte[version >= 2 ? in.readInt() : 1][];
+      for(int i = 0; i < updaters.length; i++){
+        updaters[i] = new byte[in.readInt()];
+        in.readFully(updaters[i]);
+      }
+      return new Checkpoint(epoch, batch, params, updaters);
+    }finally{
+      in.close();
+    }
+  }
+
+  private static byte[] serialize(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public static class Checkpoint {
+    private final int epoch;
+    private final int batch;
+    private final INDArray params;
+    private final byte[][] updaters;
+
+    Checkpoint(int epoch, int batch, INDArray params, byte[][] updaters){
+      this.epoch = epoch;
+      this.batch = batch;
+      this.params = params;
+      this.updaters = updaters;
+    }
+
+    public int getEpoch(){
+      return this.epoch;
+    }
+
+    public int getBatch(){
+      return this.batch;
+    }
+
+    /**
+     * @return The number of updaters saved, i.e. the number of workers the run had.
+     */
+    public int getNumUpdaters(){
+      return this.updaters.length;
+    }
+
+    /**
+     * Set the parameters and updater state of a network built with the configuration the checkpoint was taken from.
+     */
+    public void restore(MultiLayerNetwork net) throws IOException {
+      restore(new MultiLayerNetwork[]{net});
+    }
+
+    /**
+     * Set the parameters of every replica of a DataParallelTrainer and give replica i the updater state of replica i
+     * of the run the checkpoint was taken from. If that run had fewer workers, the extra replicas get the updater
+     * state of the first one.
+     */
+    public void restore(MultiLayerNetwork[] replicas) throws IOException {
+      for(int i = 0; i < replicas.length; i++){
+        MultiLayerNetwork net = replicas[i];
+        if(net.numParams() != this.params.length()){
+          throw new IOException("The checkpoint has " + this.params.length() + " parameters, the network " + net.numParams());
+        }
+        net.setParameters(this.params.dup());
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(this.updaters[i < this.updaters.length ? i : 0]));
+        try{
+          net.setUpdater((Updater) in.readObject());
+        }catch(ClassNotFoundException e){
+          throw new IOException(e);
+        }finally{
+          in.close();
+        }
+      }
+    }
+  }
+}
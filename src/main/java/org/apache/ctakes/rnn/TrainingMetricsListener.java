@@ -0,0 +1,160 @@
+package org.apache.ctakes.rnn;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Records the cost of training as well as its loss: every <code>interval</code> minibatches it writes one row with
+ * the characters and minibatches per second since the last row, the seconds spent waiting in next() and training
+ * (from a {@link TrainingTimes} such as the PrefetchingDataSetIterator or DataParallelTrainer, if there is one), the score, the norm of the parameters and of the change
+ * in them since the last row, and the heap, direct and mapped memory in use. Direct and mapped memory come from
+ * the JVM's buffer pools, so memory allocated by native BLAS code is not included.
+ * <p>
+ * The rows go to a CSV file, or to a JSON file with one object per line if the file name ends in .json or .jsonl.
+ * Only every <code>interval</code>th minibatch copies the parameters, so a large interval makes the listener cheap.
+ */
+public class TrainingMetricsListener implements IterationListener {
+
+  /**
+   * Where the time spent waiting for minibatches and training on them comes from.
+   */
+  public static interface TrainingTimes {
+    public double getWaitSeconds();
+
+    public double getTrainSeconds();
+  }
+
+  private static final long serialVersionUID = 1L;
+  private static final String[] COLUMNS = {"iteration", "seconds", "charsPerSec", "batchesPerSec", "nextSec", "fitSec",
+    "score", "paramNorm", "updateNorm", "heapMB", "directMB", "mappedMB"};
+
+  private final PrintWriter out;
+  private final boolean json;
+  private final int interval;
+  private final long charsPerIteration;
+  private final TrainingTimes times;
+  private boolean invoked = false;
+
+  private final long start = System.nanoTime();
+  private int iteration = 0;
+  private long lastSampleNanos = this.start;
+  private double lastWaitSeconds = 0.0;
+  private double lastTrainSeconds = 0.0;
+  private INDArray lastParams = null;
+
+  /**
+   * @param charsPerIteration Characters trained on per call, e.g. minibatch size * example length (* workers).
+   * @param times The time spent in next() and in fit, e.g. the iterator training reads from; may be null.
+   */
+  public TrainingMetricsListener(File file, int interval, long charsPerIteration, TrainingTimes times) throws FileNotFoundException {
+    if(interval < 1){
+      throw new IllegalArgumentException("Need an interval of at least 1, not " + interval);
+    }
+    this.out = new PrintWriter(file);
+    this.json = file.getName().endsWith(".json") || file.getName().endsWith(".jsonl");
+    this.interval = interval;
+    this.charsPerIteration = charsPerIteration;
+    this.times = times;
+    if(!this.json){
+      StringBuilder header = new StringBuilder();
+      for(String column : COLUMNS){
+        header.append(header.length() == 0 ? "" : ",").append(column);
+      }
+      this.out.println(header);
+      this.out.flush();
+    }
+  }
+
+  @Override
+  public boolean invoked(){
+    return this.invoked;
+  }
+
+  @Override
+  public void invoke(){
+    this.invoked = true;
+  }
+
+  @Override
+  public void iterationDone(Model model, int iteration){
+    this.iteration++;
+    if(this.lastParams == null){
+      this.lastParams = model.params().dup();
+    }
+    if(this.iteration % this.interval != 0){
+      return;
+    }
+    long now = System.nanoTime();
+    double seconds = (now - this.lastSampleNanos) / 1e9;
+    INDArray params = model.params().dup();
+    double updateNorm = params.sub(this.lastParams).norm2Number().doubleValue();
+    double waitSeconds = this.times == null ? Double.NaN : this.times.getWaitSeconds();
+    double trainSeconds = this.times == null ? Double.NaN : this.times.getTrainSeconds();
+    Runtime runtime = Runtime.getRuntime();
+
+    double[] values = {
+        this.iteration,
+        (now - this.start) / 1e9,
+        this.interval * this.charsPerIteration / seconds,
+        this.interval / seconds,
+        waitSeconds - this.lastWaitSeconds,
+        trainSeconds - this.lastTrainSeconds,
+        model.score(),
+        params.norm2Number().doubleValue(),
+        updateNorm,
+        (runtime.totalMemory() - runtime.freeMemory()) / 1048576.0,
+        bufferPoolBytes("direct") / 1048576.0,
+        bufferPoolBytes("mapped") / 1048576.0};
+    write(values);
+
+    this.lastSampleNanos = now;
+    this.lastWaitSeconds = waitSeconds;
+    this.lastTrainSeconds = trainSeconds;
+    this.lastParams = params;
+  }
+
+  private void write(double[] values){
+    StringBuilder row = new StringBuilder(this.json ? "{" : "");
+    for(int i = 0; i < COLUMNS.length; i++){
+      if(i > 0){
+        row.append(',');
+      }
+      if(this.json){
+        row.append('"').append(COLUMNS[i]).append("\":");
+      }
+      if(Double.isNaN(values[i])){
+        row.append(this.json ? "null" : "");
+      }else if(i == 0){
+        row.append((long) values[i]);
+      }else{
+        row.append(String.format(Locale.ROOT, "%.6g", values[i]));
+      }
+    }
+    if(this.json){
+      row.append('}');
+    }
+    this.out.println(row);
+    this.out.flush();
+  }
+
+  private static long bufferPoolBytes(String name){
+    for(BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)){
+      if(pool.getName().equals(name)){
+        return pool.getMemoryUsed();
+      }
+    }
+    return 0;
+  }
+
+  public void close(){
+    this.out.close();
+  }
+}
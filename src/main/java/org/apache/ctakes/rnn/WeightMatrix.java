@@ -0,0 +1,166 @@
+package org.apache.ctakes.rnn;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * A row-major weight matrix of {@link LstmKernel}, with one row per element of the vector multiplied into it. The
+ * values are either floats, on the heap or in a mapped model file (see RnnModelFile), or int8 with one scale per
+ * row.
+ */
+abstract class WeightMatrix {
+  final int rows;
+  final int cols;
+
+  WeightMatrix(int rows, int cols){
+    this.rows = rows;
+    this.cols = cols;
+  }
+
+  // out += factor * row
+  abstract void addRow(int row, float factor, float[] out);
+
+  abstract float get(int row, int col);
+
+  abstract long sizeInBytes();
+
+  abstract boolean isInt8();
+
+  // out += x * this
+  void addProduct(float[] x, float[] out){
+    for(int k = 0; k < x.length; k++){
+      if(x[k] != 0f){
+        addRow(k, x[k], out);
+      }
+    }
+  }
+
+  static class FloatMatrix extends WeightMatrix {
+    private final float[] values;
+
+    FloatMatrix(float[] values, int cols){
+      super(values.length / cols, cols);
+      this.values = values;
+    }
+
+    @Override
+    void addRow(int row, float factor, float[] out){
+      int offset = row * this.cols;
+      for(int j = 0; j < this.cols; j++){
+        out[j] += factor * this.values[offset + j];
+      }
+    }
+
+    @Override
+    float get(int row, int col){
+      return this.values[row * this.cols + col];
+    }
+
+    @Override
+    long sizeInBytes(){
+      return 4L * this.values.length;
+    }
+
+    @Override
+    boolean isInt8(){
+      return false;
+    }
+  }
+
+  // floats read in place from a buffer, e.g. a memory-mapped model file, so that processes share the pages
+  static class BufferFloatMatrix extends WeightMatrix {
+    private final FloatBuffer values;
+
+    BufferFloatMatrix(FloatBuffer values, int rows, int cols){
+      super(rows, cols);
+      this.values = values;
+    }
+
+    @Override
+    void addRow(int row, float factor, float[] out){
+      int offset = row * this.cols;
+      for(int j = 0; j < this.cols; j++){
+        out[j] += factor * this.values.get(offset + j);
+      }
+    }
+
+    @Override
+    float get(int row, int col){
+      return this.values.get(row * this.cols + col);
+    }
+
+    @Override
+    long sizeInBytes(){
+      return 4L * this.rows * this.cols;
+    }
+
+    @Override
+    boolean isInt8(){
+      return false;
+    }
+  }
+
+  // symmetric int8: value = scale[row] * q, with the row's largest absolute value mapped to 127
+  static class Int8Matrix extends WeightMatrix {
+    private final ByteBuffer values;
+    private final float[] scales;
+
+    Int8Matrix(WeightMatrix matrix){
+      super(matrix.rows, matrix.cols);
+      byte[] quantized = new byte[this.rows * this.cols];
+      this.scales = new float[this.rows];
+      for(int r = 0; r < this.rows; r++){
+        float max = 0f;
+        for(int c = 0; c < this.cols; c++){
+          max = Math.max(max, Math.abs(matrix.get(r, c)));
+        }
+        this.scales[r] = max / 127f;
+        if(max == 0f) continue;
+        for(int c = 0; c < this.cols; c++){
+          quantized[r * this.cols + c] = (byte) Math.round(matrix.get(r, c) / this.scales[r]);
+        }
+      }
+      this.values = ByteBuffer.wrap(quantized);
+    }
+
+    // already quantized values, e.g. from a mapped model file
+    Int8Matrix(ByteBuffer values, float[] scales, int cols){
+      super(scales.length, cols);
+      this.values = values;
+      this.scales = scales;
+    }
+
+    @Override
+    void addRow(int row, float factor, float[] out){
+      // the scale is folded into the factor, so the row is dequantized as it is added
+      float scaled = factor * this.scales[row];
+      int offset = row * this.cols;
+      for(int j = 0; j < this.cols; j++){
+        out[j] += scaled * this.values.get(offset + j);
+      }
+    }
+
+    @Override
+    float get(int row, int col){
+      return this.scales[row] * this.values.get(row * this.cols + col);
+    }
+
+    float getScale(int row){
+      return this.scales[row];
+    }
+
+    byte getQuantized(int row, int col){
+      return this.values.get(row * this.cols + col);
+    }
+
+    @Override
+    long sizeInBytes(){
+      return (long) this.rows * this.cols + 4L * this.scales.length;
+    }
+
+    @Override
+    boolean isInt8(){
+      return true;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package org.apache.ctakes.rnn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.deeplearning4j.nn.layers.recurrent.BaseRecurrentLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class LstmKernelTest {
+
+  private static final int VOCABULARY_SIZE = 12;
+  private static final int LAYER_SIZE = 8;
+  private static final double TOLERANCE = 1e-4;
+
+  // a small network like TrainMimicRnn's, with weights large enough that the gates and peepholes matter
+  static MultiLayerNetwork getNetwork(long seed){
+    MultiLayerNetwork net = new MultiLayerNetwork(TrainMimicRnn.getConfiguration(VOCABULARY_SIZE, VOCABULARY_SIZE, LAYER_SIZE));
+    net.init();
+    Random random = new Random(seed);
+    double[] params = new double[net.numParams()];
+    for(int i = 0; i < params.length; i++){
+      params[i] = 0.5 * random.nextGaussian();
+    }
+    net.setParameters(Nd4j.create(params));
+    return net;
+  }
+
+  @Test
+  public void testStepMatchesRnnTimeStep(){
+    MultiLayerNetwork net = getNetwork(718);
+    LstmKernel kernel = LstmKernel.fromNetwork(net);
+    LstmKernel.State state = kernel.newState();
+    Random random = new Random(12345);
+
+    net.rnnClearPreviousState();
+    for(int t = 0; t < 100; t++){
+      int charIndex = random.nextInt(VOCABULARY_SIZE);
+      INDArray input = Nd4j.zeros(VOCABULARY_SIZE);
+      input.putScalar(charIndex, 1.0);
+      INDArray output = net.rnnTimeStep(input);
+      state.step(charIndex);
+
+      for(int i = 0; i < VOCABULARY_SIZE; i++){
+        assertEquals("output " + i + " at step " + t, output.getDouble(i), state.getOutput()[i], TOLERANCE);
+      }
+      for(int l = 0; l < kernel.getNumLstmLayers(); l++){
+        INDArray memory = ((BaseRecurrentLayer<?>) net.getLayer(l)).rnnGetPreviousState().get("prevMem");
+        for(int j = 0; j < LAYER_SIZE; j++){
+          assertEquals("layer " + l + " memory cell " + j + " at step " + t, memory.getDouble(j), state.getMemory(l)[j], TOLERANCE);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSegmentActivationsMatchStep(){
+    MultiLayerNetwork net = getNetwork(718);
+    LstmKernel kernel = LstmKernel.fromNetwork(net);
+    LstmKernel.State state = kernel.newState();
+    Random random = new Random(12345);
+    int[] charIndices = new int[40];
+    for(int t = 0; t < charIndices.length; t++){
+      charIndices[t] = random.nextInt(VOCABULARY_SIZE);
+    }
+
+    // a chunk size that does not divide the sequence, so state is carried between uneven chunks
+    int memoryLayer = 1;
+    SegmentActivations activations = SegmentActivations.compute(net, charIndices, 0, VOCABULARY_SIZE, memoryLayer, 7);
+    state.step(0);
+    for(int t = 0; t < charIndices.length; t++){
+      state.step(charIndices[t]);
+      for(int i = 0; i < VOCABULARY_SIZE; i++){
+        assertEquals("output " + i + " at step " + t, state.getOutput()[i], activations.getOutput(t, i), TOLERANCE);
+      }
+      for(int j = 0; j < LAYER_SIZE; j++){
+        assertEquals("memory cell " + j + " at step " + t, state.getMemory(memoryLayer)[j], activations.getMemory(t, j), TOLERANCE);
+      }
+    }
+  }
+}